@@ -0,0 +1,6 @@
+// Profile of the training deck, used at build time to record the classes loaded during an export
+totalSlides = 'slides().length'
+
+nextSlide = 'next();'
+
+pause = 200
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2003-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.champeau.deck2pdf.writer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the per-slide work done between the capture and the encoding of a slide: conversion of
+ * the captured ARGB frame into an opaque image, frame hashing and output file name computation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FrameConversionBenchmark {
+
+    @Param({"1500x1000", "1920x1080", "3840x2160"})
+    public String resolution;
+
+    private BufferedImage argbImage;
+    private int[] pixels;
+    private int width;
+    private int height;
+    private File outputDir;
+    private MultiFileSlideWriter writer;
+    private int current;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        int[] size = SyntheticFrames.resolution(resolution);
+        width = size[0];
+        height = size[1];
+        BufferedImage frame = SyntheticFrames.create(SyntheticFrames.Kind.flat, width, height);
+        // captured frames are ARGB, as returned by SwingFXUtils
+        argbImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        argbImage.getGraphics().drawImage(frame, 0, 0, null);
+        pixels = argbImage.getRGB(0, 0, width, height, null, 0, width);
+        outputDir = Files.createTempDirectory("deck2pdf-benchmark").toFile();
+        writer = new MultiFileSlideWriter(new File(outputDir, "slide-%03d.png").getPath(), 1) {
+            @Override
+            protected void writeImage(final BufferedImage export, final OutputStream out) {
+            }
+
+            @Override
+            protected String getEncodingSettings() {
+                return "none";
+            }
+        };
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SlideExportException {
+        writer.close();
+        outputDir.delete();
+    }
+
+    /**
+     * The conversion done on every slide before pixel buffers were introduced: a new opaque
+     * image, filled with a copy of the ARGB raster.
+     */
+    @Benchmark
+    public BufferedImage copyToOpaqueImage() {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.OPAQUE);
+        argbImage.copyData(image.getRaster());
+        return image;
+    }
+
+    /**
+     * The conversion done by {@link SlideWriter#writeSlide(int[], int, int, int, int)}: the pixel buffer is wrapped without copy.
+     */
+    @Benchmark
+    public BufferedImage wrapPixelBuffer() {
+        return SlideWriter.wrap(pixels, width, height);
+    }
+
+    @Benchmark
+    public String frameDigest() {
+        return FrameDigest.of(SlideWriter.wrap(pixels, width, height));
+    }
+
+    @Benchmark
+    public File outputFile() {
+        return writer.getOutputFile(100, ++current % 100 + 1);
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2003-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.champeau.deck2pdf.writer;
+
+import com.itextpdf.text.Document;
+import com.itextpdf.text.DocumentException;
+import com.itextpdf.text.Rectangle;
+import com.itextpdf.text.pdf.PdfWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long it takes to write a whole PDF document with each layout, and prints the size of the
+ * document, so that the time and the bytes saved by compressed object streams can be compared. The
+ * <code>web</code> layout is not measured, as it only adds the time of an external <code>qpdf</code> run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PdfLayoutBenchmark {
+    private static final int SLIDES = 50;
+
+    @Param({"standard", "compact"})
+    public String layout;
+
+    @Param({"flat", "text"})
+    public String frame;
+
+    private BufferedImage[] images;
+    private long documentSize;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        images = new BufferedImage[SLIDES];
+        for (int i = 0; i < SLIDES; i++) {
+            images[i] = SyntheticFrames.create(SyntheticFrames.Kind.valueOf(frame), 1500, 1000);
+            // every slide is different, so that no image is reused
+            images[i].setRGB(0, 0, i);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.out.printf("%n%s layout, %d %s slides: %d bytes%n", layout, SLIDES, frame, documentSize);
+    }
+
+    @Benchmark
+    public long writeDocument() throws DocumentException, SlideExportException {
+        Document document = new Document(new Rectangle(1500, 1000), 0, 0, 0, 0);
+        SyntheticFrames.NullOutputStream out = new SyntheticFrames.NullOutputStream();
+        PdfWriter writer = PdfWriter.getInstance(document, out);
+        if (PdfSlideWriter.Layout.valueOf(layout) != PdfSlideWriter.Layout.standard) {
+            writer.setFullCompression();
+            writer.setCompressionLevel(-1);
+        }
+        document.open();
+        PdfSlideWriter slideWriter = new PdfSlideWriter(document, PdfSlideWriter.ImageEncoding.flate, 95, -1);
+        for (int i = 0; i < SLIDES; i++) {
+            slideWriter.writeSlide(images[i], SLIDES, i + 1);
+        }
+        slideWriter.close();
+        documentSize = out.getCount();
+        return documentSize;
+    }
+}
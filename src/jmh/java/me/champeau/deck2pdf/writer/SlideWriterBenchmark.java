@@ -0,0 +1,118 @@
+/*
+ * Copyright 2003-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.champeau.deck2pdf.writer;
+
+import com.itextpdf.text.Document;
+import com.itextpdf.text.DocumentException;
+import com.itextpdf.text.Rectangle;
+import com.itextpdf.text.pdf.PdfWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long each writer takes to encode a single slide, for various resolutions,
+ * kinds of slides and quality levels.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SlideWriterBenchmark {
+
+    @Param({"1500x1000", "1920x1080", "3840x2160"})
+    public String resolution;
+
+    @Param({"flat", "photo", "text"})
+    public String frame;
+
+    @Param({"75", "95"})
+    public float quality;
+
+    private BufferedImage image;
+    private int counter;
+    private Document document;
+    private PdfSlideWriter pdfWriter;
+    private JpegSlideWriter jpegWriter;
+    private GenericImageSlideWriter imageIOPngWriter;
+    private PngSlideWriter pngWriter;
+
+    @Setup(Level.Trial)
+    public void setup() throws DocumentException {
+        int[] size = SyntheticFrames.resolution(resolution);
+        image = SyntheticFrames.create(SyntheticFrames.Kind.valueOf(frame), size[0], size[1]);
+        document = new Document(new Rectangle(size[0], size[1]), 0, 0, 0, 0);
+        PdfWriter.getInstance(document, new SyntheticFrames.NullOutputStream());
+        document.open();
+        pdfWriter = new PdfSlideWriter(document, PdfSlideWriter.ImageEncoding.flate, quality, -1);
+        // the multi-file writers are only used for their encoders, so no file is written
+        jpegWriter = new JpegSlideWriter("benchmark.jpg", quality, 1);
+        imageIOPngWriter = new GenericImageSlideWriter("benchmark.png", "png", 1);
+        pngWriter = new PngSlideWriter("benchmark.png", new PngEncoder(-1, PngEncoder.Filter.adaptive, Runtime.getRuntime().availableProcessors()), 1);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SlideExportException {
+        pdfWriter.close();
+        jpegWriter.close();
+        imageIOPngWriter.close();
+        pngWriter.close();
+    }
+
+    @Benchmark
+    public void pdfWriteSlide() throws SlideExportException {
+        // change a pixel so that the PDF writer doesn't reuse the image of the previous slide
+        image.setRGB(0, 0, ++counter);
+        pdfWriter.writeSlide(image, -1, counter);
+    }
+
+    @Benchmark
+    public long jpegWriteImage() throws IOException {
+        SyntheticFrames.NullOutputStream out = new SyntheticFrames.NullOutputStream();
+        jpegWriter.writeImage(image, out);
+        return out.getCount();
+    }
+
+    @Benchmark
+    public long imageIOPngWriteImage() throws IOException {
+        SyntheticFrames.NullOutputStream out = new SyntheticFrames.NullOutputStream();
+        imageIOPngWriter.writeImage(image, out);
+        return out.getCount();
+    }
+
+    @Benchmark
+    public long pngWriteImage() throws IOException {
+        SyntheticFrames.NullOutputStream out = new SyntheticFrames.NullOutputStream();
+        pngWriter.writeImage(image, out);
+        return out.getCount();
+    }
+}
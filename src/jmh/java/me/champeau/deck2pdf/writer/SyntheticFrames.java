@@ -0,0 +1,140 @@
+/*
+ * Copyright 2003-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.champeau.deck2pdf.writer;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * Generates synthetic slide frames for benchmarks, so that results don't depend on a real deck.
+ */
+final class SyntheticFrames {
+    enum Kind {
+        flat,
+        photo,
+        text
+    }
+
+    private SyntheticFrames() {
+    }
+
+    static BufferedImage create(final Kind kind, final int width, final int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        switch (kind) {
+            case flat:
+                drawFlat(image);
+                break;
+            case photo:
+                drawPhoto(image);
+                break;
+            case text:
+                drawText(image);
+                break;
+        }
+        return image;
+    }
+
+    /**
+     * Parses a resolution such as <code>1920x1080</code>.
+     */
+    static int[] resolution(final String resolution) {
+        String[] parts = resolution.split("x");
+        return new int[]{Integer.parseInt(parts[0]), Integer.parseInt(parts[1])};
+    }
+
+    private static void drawFlat(final BufferedImage image) {
+        Graphics2D g = image.createGraphics();
+        int width = image.getWidth();
+        int height = image.getHeight();
+        g.setColor(new Color(0xF5F5F5));
+        g.fillRect(0, 0, width, height);
+        g.setColor(new Color(0x2A76DD));
+        g.fillRect(0, 0, width, height / 8);
+        Color[] palette = {new Color(0xE74C3C), new Color(0x2ECC71), new Color(0xF1C40F), new Color(0x34495E)};
+        for (int i = 0; i < 12; i++) {
+            g.setColor(palette[i % palette.length]);
+            int x = (i % 4) * width / 4 + width / 32;
+            int y = height / 4 + (i / 4) * height / 4;
+            g.fillRoundRect(x, y, width / 5, height / 6, 20, 20);
+        }
+        g.dispose();
+    }
+
+    private static void drawPhoto(final BufferedImage image) {
+        Random random = new Random(42);
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double fx = (double) x / width;
+                double fy = (double) y / height;
+                int r = clamp((int) (128 + 100 * Math.sin(fx * 7 + fy * 3)) + random.nextInt(16) - 8);
+                int g = clamp((int) (128 + 100 * Math.cos(fy * 5 - fx * 2)) + random.nextInt(16) - 8);
+                int b = clamp((int) (255 * fx * fy) + random.nextInt(16) - 8);
+                row[x] = (r << 16) | (g << 8) | b;
+            }
+            image.setRGB(0, y, width, 1, row, 0, width);
+        }
+    }
+
+    private static void drawText(final BufferedImage image) {
+        Graphics2D g = image.createGraphics();
+        int width = image.getWidth();
+        int height = image.getHeight();
+        g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, width, height);
+        g.setColor(Color.BLACK);
+        int fontSize = Math.max(12, height / 40);
+        g.setFont(new Font(Font.SANS_SERIF, Font.PLAIN, fontSize));
+        String line = "The quick brown fox jumps over the lazy dog, 0123456789 times in a row.";
+        for (int y = fontSize * 2; y < height; y += fontSize * 3 / 2) {
+            g.drawString(line, width / 20, y);
+        }
+        g.dispose();
+    }
+
+    private static int clamp(final int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+
+    /**
+     * An output stream discarding everything, so that benchmarks measure encoding only.
+     */
+    static class NullOutputStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(final int b) {
+            count++;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+            count += len;
+        }
+
+        long getCount() {
+            return count;
+        }
+    }
+}
@@ -16,11 +16,14 @@
 package me.champeau.deck2pdf;
 
 import javafx.animation.PauseTransition;
-import javafx.application.Platform;
+import javafx.beans.value.ChangeListener;
+import javafx.beans.value.ObservableValue;
 import javafx.concurrent.Worker;
-import javafx.embed.swing.SwingFXUtils;
 import javafx.geometry.HPos;
+import javafx.geometry.Rectangle2D;
 import javafx.geometry.VPos;
+import javafx.scene.SnapshotParameters;
+import javafx.scene.image.PixelFormat;
 import javafx.scene.image.WritableImage;
 import javafx.scene.layout.Region;
 import javafx.scene.text.FontSmoothingType;
@@ -28,10 +31,15 @@ import javafx.scene.web.WebEngine;
 import javafx.scene.web.WebView;
 import javafx.util.Duration;
 import me.champeau.deck2pdf.writer.SlideExportException;
-import me.champeau.deck2pdf.writer.SlideWriter;
+import me.champeau.deck2pdf.writer.SlideMetrics;
 
-import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
 
 /*
  * Licensed under the Apache License, Version 2.0 (the "License");
@@ -49,92 +57,299 @@ import java.util.concurrent.atomic.AtomicInteger;
  */
 
 /**
- * This class is responsible for converting a slide deck into a PDF file. It performs the following:
+ * This class is responsible for capturing the slides of a slide deck. It performs the following:
  * <p/>
- * <ul> <li>opens a web view with the slide deck</li> <li>captures each slide after one second</li> <li>puts the capture
- * into a PDF file</li> <li>exits the VM</li> </ul>
+ * <ul> <li>opens a web view with the slide deck</li> <li>captures each slide of its range once the page is settled,
+ * or after the profile pause</li> <li>hands the capture over to a {@link SlidePipeline} which puts it into the export
+ * file</li> </ul>
+ * Several browsers may capture distinct ranges of the same deck concurrently, see {@link DeckExporter}.
  *
  * @author Cédric Champeau
  */
 class Browser extends Region {
 
+    // interval at which the page is polled when waiting for a slide to settle
+    private static final int SETTLE_POLL_MILLIS = 25;
+    // slides larger than this, in any dimension, are captured in tiles
+    static final int DEFAULT_TILE_SIZE = 4096;
+
     private final WebView browser = new WebView();
     private final WebEngine webEngine = browser.getEngine();
-    private final String exportFile;
-    private final int width;
-    private final int height;
-    private final float quality;
+    private int width;
+    private int height;
+    private final AtomicLong totalWait = new AtomicLong();
+    private WritableImage snapshotTarget;
+    private int tileSize = DEFAULT_TILE_SIZE;
+    private final SnapshotParameters tileParameters = new SnapshotParameters();
+    private WritableImage tileTarget;
+    // accessed from the JavaFX application thread only
+    private boolean cancelled;
 
-    public Browser(String rootURL, String exportFile, int width, int height, float quality) {
+    public Browser(int width, int height) {
         //apply the styles
         getStyleClass().add("browser");
-        // load the web page
-        webEngine.load(rootURL);
         //add the web view to the scene
         getChildren().add(browser);
         browser.setFontSmoothingType(FontSmoothingType.GRAY);
         this.width = width;
         this.height = height;
-        this.quality = quality;
-        this.exportFile = exportFile;
     }
 
     public WebEngine getEngine() {
         return webEngine;
     }
 
-    private void handleError(Exception e) {
-        throw new RuntimeException("Unable to export slide deck", e);
+    /**
+     * Returns the total time spent waiting for slides to settle.
+     * @return the total wait time, in milliseconds
+     */
+    public long getTotalWait() {
+        return totalWait.get();
+    }
+
+    /**
+     * Stops the current export: the page stops loading, and no other slide is captured. Must be called from the
+     * JavaFX application thread.
+     */
+    public void cancel() {
+        cancelled = true;
+        webEngine.getLoadWorker().cancel();
+    }
+
+    /**
+     * Changes the size of the browser, for example before a pooled browser is reused for another export.
+     * @param width the new width
+     * @param height the new height
+     */
+    public void setSize(final int width, final int height) {
+        this.width = width;
+        this.height = height;
+        requestLayout();
+    }
+
+    /**
+     * Sets the size of the tiles used to capture slides which are larger than this size, in any dimension.
+     * @param tileSize the width and height of the tiles, in pixels
+     */
+    public void setTileSize(final int tileSize) {
+        this.tileSize = Math.max(1, tileSize);
+    }
+
+    /**
+     * Loads the slide deck, then calls the action once the page is loaded.
+     * @param rootURL the URL of the slide deck
+     * @param onLoaded the action to be executed once the page is loaded
+     * @param onError called if the page cannot be loaded
+     */
+    public void load(final String rootURL, final Runnable onLoaded, final Consumer<Exception> onError) {
+        webEngine.getLoadWorker().stateProperty().addListener(new ChangeListener<Worker.State>() {
+            @Override
+            public void changed(final ObservableValue<? extends Worker.State> ov, final Worker.State oldState, final Worker.State newState) {
+                if (newState == Worker.State.SUCCEEDED) {
+                    ov.removeListener(this);
+                    onLoaded.run();
+                } else if (newState == Worker.State.FAILED || newState == Worker.State.CANCELLED) {
+                    ov.removeListener(this);
+                    Throwable cause = webEngine.getLoadWorker().getException();
+                    onError.accept(new IOException("Unable to load " + rootURL, cause));
+                }
+            }
+        });
+        webEngine.load(rootURL);
     }
 
-    public void doExport(final Profile profile, final int width, final int height) {
-        final PauseTransition pt = new PauseTransition();
-        pt.setDuration(Duration.millis(profile.getPause()));
-        final AtomicInteger slideCounter = new AtomicInteger();
-        final AtomicInteger numSlidesCache = new AtomicInteger(-1);
-        final SlideWriter writer;
+    /**
+     * Exports a range of slides. The page must be loaded and the profile set up. The browser first jumps
+     * to the first slide of the range without capturing, then captures every selected slide of the range,
+     * moving through the slides which are not selected without waiting for them.
+     * @param profile the profile used to interact with the deck
+     * @param selection the slides selected for the export
+     * @param firstSlide the first slide to capture, starting from 1, which must be selected
+     * @param lastSlide the last slide to capture, or -1 to capture until the end of the selection
+     * @param numSlides the total number of slides, or -1 if unknown
+     * @param pipeline the pipeline which receives the captured slides
+     * @param onDone called once the last slide of the range is captured, with true if it was the last slide of the
+     * deck or of the selection
+     * @param onError called if the export fails
+     */
+    public void exportSlides(final Profile profile,
+                             final SlideSelection selection,
+                             final int firstSlide,
+                             final int lastSlide,
+                             final int numSlides,
+                             final SlidePipeline pipeline,
+                             final Consumer<Boolean> onDone,
+                             final Consumer<Exception> onError) {
+        final SlideMetrics metrics = pipeline.getMetrics();
+        // pooled browsers export several decks
+        totalWait.set(0);
+        cancelled = false;
+        long start = System.nanoTime();
+        // each slide is then navigated to and inspected in a single step
+        final AtomicReference<Profile.SlideState> state;
         try {
-            writer = SlideWriter.of(profile, exportFile, width, height, quality);
-        } catch (SlideExportException e) {
-            handleError(e);
+            state = new AtomicReference<>(moveTo(profile, 1, firstSlide));
+        } catch (RuntimeException e) {
+            onError.accept(e);
             return;
         }
+        metrics.recordSince(firstSlide, SlideMetrics.Phase.navigate, start);
+        if (state.get() == null) {
+            // the deck is shorter than the selection
+            onDone.accept(true);
+            return;
+        }
+        final AtomicInteger slideCounter = new AtomicInteger(firstSlide);
+        final LongConsumer capture = new LongConsumer() {
+            @Override
+            public void accept(final long waitedNanos) {
+                final int current = slideCounter.get();
+                final int sequence = selection.sequence(current);
+                final long waited = TimeUnit.NANOSECONDS.toMillis(waitedNanos);
+                totalWait.addAndGet(waited);
+                metrics.record(current, SlideMetrics.Phase.wait, waitedNanos);
+                final LongConsumer settled = this;
+                final Runnable onWritten = () ->
+                        System.out.printf("Exported slide %d%s (waited %d ms)%n", current, numSlides > 0 ? "/" + numSlides : "", waited);
+                final Runnable onCaptured = () -> {
+                    int next = selection.next(current);
+                    boolean lastOfExport = state.get().isLast() || (numSlides > 0 && current >= numSlides) || next == -1;
+                    if (lastOfExport || (lastSlide != -1 && next > lastSlide)) {
+                        onDone.accept(lastOfExport);
+                        return;
+                    }
+                    long navigationStart = System.nanoTime();
+                    Profile.SlideState nextState = moveTo(profile, current, next);
+                    metrics.recordSince(next, SlideMetrics.Phase.navigate, navigationStart);
+                    if (nextState == null) {
+                        onDone.accept(true);
+                        return;
+                    }
+                    state.set(nextState);
+                    slideCounter.set(next);
+                    whenSettled(profile, nextState.getSuggestedPause(), settled, onError);
+                };
+                if (browser.getWidth() > tileSize || browser.getHeight() > tileSize) {
+                    captureStrip(pipeline, sequence, 0, current, numSlides, onWritten, onCaptured, onError);
+                    return;
+                }
+                pipeline.whenAccepting(sequence, () -> {
+                    try {
+                        // the snapshot target is reused as long as the size of the browser doesn't change
+                        long phaseStart = System.nanoTime();
+                        snapshotTarget = browser.snapshot(null, snapshotTarget);
+                        metrics.recordSince(current, SlideMetrics.Phase.snapshot, phaseStart);
+                        phaseStart = System.nanoTime();
+                        int w = (int) snapshotTarget.getWidth();
+                        int h = (int) snapshotTarget.getHeight();
+                        int[] pixels = pipeline.acquireFrame(w * h);
+                        snapshotTarget.getPixelReader().getPixels(0, 0, w, h, PixelFormat.getIntArgbInstance(), pixels, 0, w);
+                        metrics.recordSince(current, SlideMetrics.Phase.pixels, phaseStart);
+                        pipeline.submit(sequence, current, numSlides, pixels, w, h, onWritten);
+                        onCaptured.run();
+                    } catch (SlideExportException | RuntimeException e) {
+                        // a failing script would otherwise be lost in the JavaFX thread, and the export would never end
+                        onError.accept(e);
+                    }
+                });
+            }
+        };
+        whenSettled(profile, state.get().getSuggestedPause(), capture, onError);
+    }
+
+    /**
+     * Captures a slide which is larger than the tile size, as horizontal strips of tiles. Each tile is rendered
+     * separately, using a snapshot viewport, into the rows of the strip, and each strip is queued as soon as it
+     * is complete. Strips have at most as many pixels as a tile, so that memory is bounded by the tile size
+     * instead of the size of the slide, however wide it is.
+     */
+    private void captureStrip(final SlidePipeline pipeline, final int sequence, final int strip, final int current, final int numSlides,
+                              final Runnable onWritten, final Runnable onCaptured, final Consumer<Exception> onError) {
+        pipeline.whenAccepting(sequence, strip, () -> {
+            SlideMetrics metrics = pipeline.getMetrics();
+            int w = (int) Math.ceil(browser.getWidth());
+            int h = (int) Math.ceil(browser.getHeight());
+            int stripRows = (int) Math.min(tileSize, Math.max(1, (long) tileSize * tileSize / w));
+            int y = strip * stripRows;
+            int rows = Math.min(stripRows, h - y);
+            boolean last = y + rows >= h;
+            if (tileTarget == null || tileTarget.getWidth() != tileSize) {
+                tileTarget = new WritableImage(tileSize, tileSize);
+            }
+            try {
+                int[] pixels = pipeline.acquireFrame(w * rows);
+                for (int x = 0; x < w; x += tileSize) {
+                    int columns = Math.min(tileSize, w - x);
+                    long phaseStart = System.nanoTime();
+                    tileParameters.setViewport(new Rectangle2D(x, y, columns, rows));
+                    // the tile target is larger than edge tiles, in which case only a part of it is read
+                    tileTarget = browser.snapshot(tileParameters, tileTarget);
+                    metrics.recordSince(current, SlideMetrics.Phase.snapshot, phaseStart);
+                    phaseStart = System.nanoTime();
+                    tileTarget.getPixelReader().getPixels(0, 0, columns, rows, PixelFormat.getIntArgbInstance(), pixels, x, w);
+                    metrics.recordSince(current, SlideMetrics.Phase.pixels, phaseStart);
+                }
+                pipeline.submitStrip(sequence, strip, last, current, numSlides, pixels, w, h, onWritten);
+                if (last) {
+                    onCaptured.run();
+                } else {
+                    captureStrip(pipeline, sequence, strip + 1, current, numSlides, onWritten, onCaptured, onError);
+                }
+            } catch (SlideExportException | RuntimeException e) {
+                onError.accept(e);
+            }
+        });
+    }
+
+    /**
+     * Moves from a slide to another one, jumping directly to it if the profile supports it, or stepping through
+     * the slides in between otherwise, without waiting for them.
+     * @param profile the profile used to interact with the deck
+     * @param current the current slide
+     * @param target the slide to move to, greater than or equal to the current slide
+     * @return the state of the target slide, or null if the end of the deck was reached before the target slide
+     */
+    private static Profile.SlideState moveTo(final Profile profile, final int current, final int target) {
+        if (target == current) {
+            return profile.step(target, false);
+        }
+        if (target > current + 1 && profile.gotoSlide(target)) {
+            return profile.step(target, false);
+        }
+        for (int slide = current + 1; slide < target; slide++) {
+            if (profile.step(slide, true).isLast()) {
+                return null;
+            }
+        }
+        return profile.step(target, true);
+    }
+
+    /**
+     * Waits for the current slide to be ready, then calls the action with the time actually waited, in
+     * nanoseconds. If settle detection is enabled, the page is polled until the profile reports that
+     * it is settled, and the pause is used as an upper bound. Otherwise, the full pause is used. Exceptions
+     * thrown by the profile or by the action are passed to the error handler.
+     */
+    private void whenSettled(final Profile profile, final int maxWait, final LongConsumer action, final Consumer<Exception> onError) {
+        final boolean adaptive = profile.isSettleDetectionEnabled();
+        final long start = System.nanoTime();
+        final PauseTransition pt = new PauseTransition(Duration.millis(adaptive ? Math.min(SETTLE_POLL_MILLIS, maxWait) : maxWait));
         pt.setOnFinished(actionEvent -> {
-            WritableImage snapshot = browser.snapshot(null, null);
-            // Remove alpha-channel from buffered image to reduce size and enable jpg export
-            BufferedImage image = new BufferedImage((int) snapshot.getWidth(), (int) snapshot.getHeight(), BufferedImage.OPAQUE);
-            SwingFXUtils.fromFXImage(snapshot, null).copyData(image.getRaster());
-
-            int numSlides = numSlidesCache.get();
-            if (numSlides == -1) {
-                numSlides = profile.getSlideCount();
-                numSlidesCache.set(numSlides);
+            if (cancelled) {
+                return;
             }
-            int current = slideCounter.incrementAndGet();
+            long waited = System.nanoTime() - start;
             try {
-                writer.writeSlide(image, numSlides, current);
-                System.out.printf("Exported slide %d%s%n", current, numSlides > 0 ? "/" + numSlides : "");
-                if (!profile.isLastSlide(current)) {
-                    profile.nextSlide();
-                    pt.setDuration(Duration.millis(profile.getPause()));
-                    pt.play();
+                if (!adaptive || TimeUnit.NANOSECONDS.toMillis(waited) >= maxWait || profile.isSettled()) {
+                    action.accept(waited);
                 } else {
-                    profile.finish();
-                    writer.close();
-                    System.out.println("Export complete!");
-                    Platform.exit();
+                    pt.playFromStart();
                 }
-            } catch (SlideExportException e) {
-                handleError(e);
+            } catch (RuntimeException e) {
+                onError.accept(e);
             }
         });
-        webEngine.getLoadWorker().stateProperty().addListener(
-                (ov, oldState, newState) -> {
-                    if (newState == Worker.State.SUCCEEDED) {
-                        profile.setup();
-                        profile.ready(pt::play);
-                    }
-                });
+        pt.play();
     }
 
     @Override
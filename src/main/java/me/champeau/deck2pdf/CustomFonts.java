@@ -0,0 +1,221 @@
+/*
+ * Copyright 2003-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.champeau.deck2pdf;
+
+import javafx.scene.text.Font;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * JavaFX 2.2 does not support CSS3 @font-face so this is a workaround that allows loading custom fonts from a
+ * directory specified on command line, with the 'fontsdir' option.
+ * <p/>
+ * Only the fonts of the families referenced by the deck are loaded: the deck and its stylesheets are scanned for
+ * <code>font-family</code> and <code>font</code> declarations, and the matching files are found using a
+ * {@link FontIndex}. Fonts are loaded in the background by dedicated threads, while the export is set up, and the
+ * deck is loaded once they are available. Every font of the
+ * directory can still be loaded, with <code>--allFonts=true</code>, for decks which set fonts from javascript.
+ *
+ * @author Cédric Champeau
+ */
+class CustomFonts {
+    private static final String FONTS_DIRECTORY_OPTION = "fontsdir";
+    private static final int MAX_STYLESHEET_DEPTH = 4;
+
+    private static final Pattern FONT_FAMILY = Pattern.compile("font-family\\s*:\\s*([^;}{>]+)", Pattern.CASE_INSENSITIVE);
+    private static final Pattern FONT_SHORTHAND = Pattern.compile("[{;\\s\"']font\\s*:\\s*([^;}{>]+)", Pattern.CASE_INSENSITIVE);
+    private static final Pattern LINK = Pattern.compile("<link\\b[^>]*>", Pattern.CASE_INSENSITIVE);
+    private static final Pattern STYLESHEET = Pattern.compile("rel\\s*=\\s*[\"']?stylesheet", Pattern.CASE_INSENSITIVE);
+    private static final Pattern HREF = Pattern.compile("href\\s*=\\s*(?:\"([^\"]*)\"|'([^']*)'|([^\\s>]+))", Pattern.CASE_INSENSITIVE);
+    private static final Pattern IMPORT = Pattern.compile("@import\\s+(?:url\\(\\s*)?[\"']?([^\"')\\s;]+)", Pattern.CASE_INSENSITIVE);
+
+    // fonts are read from disk, which must not starve the common pool used by the rest of the application
+    private static final ExecutorService LOADERS = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+        Thread thread = new Thread(r, "deck2pdf-font-loader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final File fontsDir;
+    private final boolean allFonts;
+    // fonts already loaded, so that successive exports of the server don't load them again
+    private final Set<String> loaded = ConcurrentHashMap.newKeySet();
+
+    private CustomFonts(final File fontsDir, final boolean allFonts) {
+        this.fontsDir = fontsDir;
+        this.allFonts = allFonts;
+    }
+
+    /**
+     * Creates the custom fonts loader from the command line options.
+     * @param options the command line options
+     * @return the loader, or null if no fonts directory is set
+     */
+    static CustomFonts fromOptions(final Map<String, String> options) {
+        String fontsDir = options.get(FONTS_DIRECTORY_OPTION);
+        if (fontsDir == null) {
+            return null;
+        }
+        return new CustomFonts(new File(fontsDir), Boolean.valueOf(options.get("allFonts")));
+    }
+
+    /**
+     * Loads, in the background, the custom fonts referenced by a slide deck.
+     * @param deckURL the URL of the slide deck
+     * @return a future which completes with the number of fonts loaded, once they are available to the web view
+     */
+    CompletableFuture<Integer> loadFontsOf(final String deckURL) {
+        return CompletableFuture.supplyAsync(() -> {
+            FontIndex index = FontIndex.open(fontsDir);
+            Set<String> families = null;
+            if (!allFonts) {
+                try {
+                    families = referencedFamilies(deckURL);
+                } catch (IOException e) {
+                    System.err.println("Unable to find the fonts used by " + deckURL + ", loading every custom font: " + e.getMessage());
+                }
+            }
+            List<CompletableFuture<Boolean>> loads = new ArrayList<>();
+            for (FontIndex.Entry font : index.getFonts(families)) {
+                loads.add(CompletableFuture.supplyAsync(() -> load(index, font), LOADERS));
+            }
+            return loads;
+        }, LOADERS).thenCompose(loads -> CompletableFuture.allOf(loads.toArray(new CompletableFuture[loads.size()]))
+                .thenApply(done -> (int) loads.stream().filter(CompletableFuture::join).count()));
+    }
+
+    private boolean load(final FontIndex index, final FontIndex.Entry entry) {
+        File file = index.getFile(entry);
+        if (!loaded.add(file.getPath())) {
+            return false;
+        }
+        // loading from an URL, the font loader closes the file itself
+        if (Font.loadFont(file.toURI().toString(), -1) == null) {
+            System.err.println("Unable to load font from file " + file);
+            return false;
+        }
+        System.out.println("Loaded font " + entry);
+        return true;
+    }
+
+    /**
+     * Finds the font families referenced by a deck, in its inline styles and in its stylesheets.
+     * @param deckURL the URL of the slide deck
+     * @return lower case family names
+     * @throws IOException if the deck cannot be read
+     */
+    static Set<String> referencedFamilies(final String deckURL) throws IOException {
+        Set<String> families = new HashSet<>();
+        URL deck = new URL(deckURL);
+        String html = read(deck);
+        collectFamilies(html, families);
+        Set<String> visited = new HashSet<>();
+        Matcher links = LINK.matcher(html);
+        while (links.find()) {
+            String link = links.group();
+            Matcher href = HREF.matcher(link);
+            if (STYLESHEET.matcher(link).find() && href.find()) {
+                scanStylesheet(new URL(deck, firstNonNull(href)), families, visited, 0);
+            }
+        }
+        scanImports(deck, html, families, visited, 0);
+        return families;
+    }
+
+    private static void scanStylesheet(final URL url, final Set<String> families, final Set<String> visited, final int depth) {
+        if (depth >= MAX_STYLESHEET_DEPTH || !visited.add(url.toString())) {
+            return;
+        }
+        try {
+            String css = read(url);
+            collectFamilies(css, families);
+            scanImports(url, css, families, visited, depth + 1);
+        } catch (IOException e) {
+            // the web view won't be able to use it either
+        }
+    }
+
+    private static void scanImports(final URL base, final String css, final Set<String> families, final Set<String> visited, final int depth) throws IOException {
+        Matcher imports = IMPORT.matcher(css);
+        while (imports.find()) {
+            scanStylesheet(new URL(base, imports.group(1)), families, visited, depth);
+        }
+    }
+
+    private static void collectFamilies(final String text, final Set<String> families) {
+        Matcher matcher = FONT_FAMILY.matcher(text);
+        while (matcher.find()) {
+            addFamilies(matcher.group(1), families);
+        }
+        matcher = FONT_SHORTHAND.matcher(text);
+        while (matcher.find()) {
+            // in the shorthand, the families come after the size: only keep the last word of the first one
+            String value = matcher.group(1).trim();
+            int comma = value.indexOf(',');
+            String first = comma < 0 ? value : value.substring(0, comma);
+            int quote = first.indexOf('"') >= 0 ? first.indexOf('"') : first.indexOf('\'');
+            int start = quote >= 0 ? quote : first.lastIndexOf(' ') + 1;
+            addFamilies(value.substring(start), families);
+        }
+    }
+
+    private static void addFamilies(final String value, final Set<String> families) {
+        for (String family : value.replace("!important", "").split(",")) {
+            String name = family.trim().replaceAll("^[\"']|[\"']$", "").replace("&quot;", "").trim();
+            if (!name.isEmpty()) {
+                families.add(name.toLowerCase(Locale.ROOT));
+            }
+        }
+    }
+
+    private static String firstNonNull(final Matcher matcher) {
+        for (int i = 1; i <= matcher.groupCount(); i++) {
+            if (matcher.group(i) != null) {
+                return matcher.group(i);
+            }
+        }
+        return "";
+    }
+
+    private static String read(final URL url) throws IOException {
+        try (InputStream in = url.openStream()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright 2003-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.champeau.deck2pdf;
+
+import javafx.application.Application;
+import javafx.application.Platform;
+import javafx.scene.Scene;
+import javafx.scene.paint.Color;
+import javafx.stage.Stage;
+
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ResponseCache;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The Java API of deck2pdf, to export slide decks from another application, for example to stream a PDF to an
+ * HTTP response:
+ * <code>
+ *     Deck2Pdf.export(new ExportRequest(url).setProfile("revealjs").setOutput(out))
+ *         .thenAccept(result -&gt; log(result.getSlideCount() + " slides exported"));
+ * </code>
+ * Exports run on the JavaFX application thread and never block the caller. The JavaFX toolkit is started by the
+ * first export, or explicitly with {@link #startup(boolean)}, and it is shared with the host application if that
+ * application already uses JavaFX.
+ *
+ * @author Cédric Champeau
+ */
+public final class Deck2Pdf {
+    // size of the virtual screen in headless mode, large enough for 4K slides
+    private static final int HEADLESS_WIDTH = 3840;
+    private static final int HEADLESS_HEIGHT = 2160;
+
+    // completes once the toolkit is available, or exceptionally if it cannot be started
+    private static final CompletableFuture<Void> STARTED = new CompletableFuture<>();
+    // custom fonts by fonts directory, so that fonts are loaded only once
+    private static final Map<String, CustomFonts> FONTS = new ConcurrentHashMap<>();
+    private static boolean launched;
+    // the last export using a resource cache, which the next one waits for, guarded by the class
+    private static CompletableFuture<?> resourceCacheExport = CompletableFuture.completedFuture(null);
+
+    private Deck2Pdf() {
+    }
+
+    /**
+     * Starts the JavaFX toolkit, if it is not started yet, and waits until it is available. Headless mode must be
+     * chosen before the toolkit is started, and is ignored if the host application already started JavaFX.
+     * @param headless true to render with the Monocle headless platform, which doesn't require a display
+     * @throws IllegalStateException if headless mode is requested but Monocle is not on the classpath, or if the
+     * toolkit cannot be started, for example without a display. The failure is thrown again by later calls.
+     */
+    public static void startup(final boolean headless) {
+        try {
+            launch(headless).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while starting JavaFX", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Unable to start JavaFX", e.getCause());
+        }
+    }
+
+    /**
+     * Starts the JavaFX toolkit in a background thread, if it is not started yet.
+     * @return a future which completes once the toolkit is available
+     */
+    private static synchronized CompletableFuture<Void> launch(final boolean headless) {
+        if (!launched) {
+            Main.configureRendering();
+            if (headless) {
+                Main.configureHeadless(HEADLESS_WIDTH, HEADLESS_HEIGHT);
+            }
+            Thread launcher = new Thread(() -> {
+                try {
+                    Application.launch(Toolkit.class);
+                } catch (IllegalStateException e) {
+                    // the toolkit was already started by the host application
+                    Platform.setImplicitExit(false);
+                    STARTED.complete(null);
+                } catch (Throwable e) {
+                    STARTED.completeExceptionally(e);
+                }
+            }, "deck2pdf-fx-launcher");
+            launcher.setDaemon(true);
+            launcher.start();
+            launched = true;
+        }
+        return STARTED;
+    }
+
+    /**
+     * Exports a slide deck. The options of the request are the same as the command line options, with the exception
+     * of <code>server</code> and <code>headless</code>. Exports using the <code>resourceCache</code> option are run one
+     * after the other, because the cache is installed as the JVM-wide {@link ResponseCache} while the export runs.
+     * @param request the export request
+     * @return a future which completes once the export is written, or completes exceptionally if the export fails
+     */
+    public static CompletableFuture<ExportResult> export(final ExportRequest request) {
+        CompletableFuture<ExportResult> result = new CompletableFuture<>();
+        final String deckURL;
+        CompletableFuture<?> ready;
+        try {
+            ready = launch(false);
+            deckURL = Main.resolveDeckURL(request.getDeck());
+        } catch (IOException | RuntimeException e) {
+            result.completeExceptionally(e);
+            return result;
+        }
+        final long start = System.nanoTime();
+        final Map<String, String> options = new HashMap<>(request.getOptions());
+        final boolean cached = options.containsKey("resourceCache") || options.containsKey("resourceCacheDir");
+        if (cached) {
+            synchronized (Deck2Pdf.class) {
+                ready = CompletableFuture.allOf(ready, resourceCacheExport);
+                resourceCacheExport = result.handle((done, failure) -> null);
+            }
+        }
+        final File outputFile = request.getOutputStream() != null ? null
+                : request.getOutputFile() != null ? request.getOutputFile() : new File("output." + request.getFormat());
+        final CountingOutputStream out = request.getOutputStream() == null ? null : new CountingOutputStream(request.getOutputStream());
+        ready.whenComplete((started, startFailure) -> {
+            if (startFailure != null) {
+                result.completeExceptionally(startFailure instanceof CompletionException ? startFailure.getCause() : startFailure);
+            } else {
+                Platform.runLater(() -> run(request, deckURL, options, cached, outputFile, out, start, result));
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Runs an export on the JavaFX application thread, once the toolkit is started.
+     */
+    private static void run(final ExportRequest request, final String deckURL, final Map<String, String> options, final boolean cached,
+                            final File outputFile, final CountingOutputStream out, final long start, final CompletableFuture<ExportResult> result) {
+        List<Stage> stages = new ArrayList<>();
+        // the resource cache is JVM-wide, so it is only installed for the duration of the export
+        ResponseCache previousCache = ResponseCache.getDefault();
+        AtomicReference<ResourceCache> resourceCache = new AtomicReference<>();
+        try {
+            int width = Main.parseArgumentAsInt(options, "width", Main.WIDTH);
+            int height = Main.parseArgumentAsInt(options, "height", Main.HEIGHT);
+            float quality = Main.parseArgumentAsFloat(options, "quality", Main.COMPRESSION_QUALITY);
+            if (cached) {
+                resourceCache.set(ResourceCache.install(options));
+            }
+            DeckExporter exporter = new DeckExporter(deckURL, outputFile == null ? null : outputFile.getPath(), options, width, height, quality);
+            if (out != null) {
+                exporter.setOutput(out, request.getFormat());
+            }
+            CustomFonts fonts = customFonts(options);
+            if (fonts != null) {
+                exporter.setFonts(fonts.loadFontsOf(deckURL));
+            }
+            exporter.setQueueDepth(Main.parseArgumentAsInt(options, "queueDepth", SlidePipeline.DEFAULT_QUEUE_DEPTH));
+            exporter.setQueueMemory(Main.parseArgumentAsInt(options, "queueMemory", SlidePipeline.DEFAULT_QUEUE_MEMORY_MB));
+            int concurrency = Math.max(1, Main.parseArgumentAsInt(options, "concurrency", 1));
+            for (int i = 0; i < concurrency; i++) {
+                Stage stage = new Stage();
+                stage.setTitle("PDF Export Web View");
+                Browser browser = new Browser(width, height);
+                stage.setScene(new Scene(browser, width, height, Color.web("#666970")));
+                stage.show();
+                stages.add(stage);
+                exporter.addBrowser(browser);
+            }
+            exporter.export().whenComplete((done, failure) -> Platform.runLater(() -> {
+                stages.forEach(Stage::close);
+                ResourceCache.uninstall(resourceCache.get(), previousCache);
+                if (failure != null) {
+                    result.completeExceptionally(failure);
+                    return;
+                }
+                long bytes = out != null ? out.count
+                        : outputFile.isFile() ? outputFile.length() : exporter.getMetrics().getOutputBytes();
+                long elapsed = (System.nanoTime() - start) / 1_000_000;
+                result.complete(new ExportResult(exporter.getMetrics().getSlideCount(), bytes, elapsed, outputFile, exporter.getMetrics()));
+            }));
+        } catch (RuntimeException e) {
+            stages.forEach(Stage::close);
+            ResourceCache.uninstall(resourceCache.get(), previousCache);
+            result.completeExceptionally(e);
+        }
+    }
+
+    private static CustomFonts customFonts(final Map<String, String> options) {
+        String fontsDir = options.get("fontsdir");
+        if (fontsDir == null) {
+            return null;
+        }
+        return FONTS.computeIfAbsent(fontsDir + "|" + options.get("allFonts"), key -> CustomFonts.fromOptions(options));
+    }
+
+    /**
+     * The JavaFX application started by the API. It doesn't show any window by itself.
+     */
+    public static class Toolkit extends Application {
+        @Override
+        public void start(final Stage stage) {
+            // exports close their windows, which must not stop the toolkit
+            Platform.setImplicitExit(false);
+            STARTED.complete(null);
+        }
+    }
+
+    /**
+     * Counts the bytes written to the stream of the caller, and doesn't close it: the stream belongs to the caller.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        private volatile long count;
+
+        private CountingOutputStream(final OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
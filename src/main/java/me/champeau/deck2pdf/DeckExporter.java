@@ -0,0 +1,309 @@
+/*
+ * Copyright 2003-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.champeau.deck2pdf;
+
+import javafx.application.Platform;
+import me.champeau.deck2pdf.writer.SlideExportException;
+import me.champeau.deck2pdf.writer.SlideMetrics;
+import me.champeau.deck2pdf.writer.SlideWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Coordinates the export of a slide deck using one or more {@link Browser browsers}. Each browser loads the
+ * deck with its own {@link Profile}. If the number of slides is known, the deck is split into contiguous ranges,
+ * one per browser, so that the time spent waiting for slides to settle overlaps. Captured slides are sent to a
+ * single {@link SlidePipeline}, which writes them in slide order, so the output is identical to a sequential export.
+ * <p/>
+ * All methods must be called from the JavaFX application thread.
+ *
+ * @author Cédric Champeau
+ */
+class DeckExporter {
+    private final String rootURL;
+    private final String exportFile;
+    private final Map<String, ?> options;
+    private final int width;
+    private final int height;
+    private final float quality;
+    private final List<Browser> browsers = new ArrayList<>();
+    private final List<Profile> profiles = new ArrayList<>();
+    private final CompletableFuture<Void> completion = new CompletableFuture<>();
+
+    private int queueDepth = SlidePipeline.DEFAULT_QUEUE_DEPTH;
+    private int queueMemory = SlidePipeline.DEFAULT_QUEUE_MEMORY_MB;
+    private OutputStream output;
+    private String outputFormat;
+    private CompletableFuture<?> fonts = CompletableFuture.completedFuture(null);
+    private SlideSelection selection;
+    private SlidePipeline pipeline;
+    private int pendingRanges;
+    private boolean reachedEnd;
+    private Profile lastProfile;
+
+    DeckExporter(final String rootURL, final String exportFile, final Map<String, ?> options, final int width, final int height, final float quality) {
+        this.rootURL = rootURL;
+        this.exportFile = exportFile;
+        this.options = options;
+        this.width = width;
+        this.height = height;
+        this.quality = quality;
+    }
+
+    /**
+     * Sets the maximum number of captured slides waiting to be written.
+     */
+    public void setQueueDepth(final int queueDepth) {
+        this.queueDepth = queueDepth;
+    }
+
+    /**
+     * Sets the maximum amount of memory, in megabytes, used by captured slides waiting to be written.
+     */
+    public void setQueueMemory(final int queueMemory) {
+        this.queueMemory = queueMemory;
+    }
+
+    /**
+     * Writes the export to a stream instead of the export file.
+     * @param output the stream, which is closed once the export is complete
+     * @param format the export format, which must produce a single file, like <code>pdf</code>
+     */
+    public void setOutput(final OutputStream output, final String format) {
+        this.output = output;
+        this.outputFormat = format;
+    }
+
+    /**
+     * Returns the metrics of the export, once it is started.
+     */
+    public SlideMetrics getMetrics() {
+        return pipeline == null ? null : pipeline.getMetrics();
+    }
+
+    /**
+     * Sets the custom fonts loaded in the background while the export is set up. The deck is only loaded once
+     * they are available, so that it is laid out with them.
+     * @param fonts a future which completes once the custom fonts are loaded
+     */
+    public void setFonts(final CompletableFuture<?> fonts) {
+        this.fonts = fonts;
+    }
+
+    /**
+     * Adds a browser which will take part in the export. Browsers must be added before the export starts.
+     * @param browser a browser, already attached to a scene
+     */
+    public void addBrowser(final Browser browser) {
+        browsers.add(browser);
+    }
+
+    /**
+     * Starts the export.
+     * @return a future which completes once every slide is written and the export file is closed
+     */
+    public CompletableFuture<Void> export() {
+        if (browsers.isEmpty()) {
+            throw new IllegalStateException("At least one browser is required");
+        }
+        Object slides = options.get("slides");
+        try {
+            selection = SlideSelection.parse(slides == null ? null : slides.toString());
+        } catch (IllegalArgumentException e) {
+            completion.completeExceptionally(e);
+            return completion;
+        }
+        Object tileSize = options.get("tileSize");
+        for (Browser browser : browsers) {
+            browser.setTileSize(tileSize == null ? Browser.DEFAULT_TILE_SIZE : Integer.valueOf(tileSize.toString()));
+            profiles.add(ProfileLoader.loadProfile((String) options.get("profile"), browser.getEngine(), options));
+        }
+        Profile primary = profiles.get(0);
+        try {
+            pipeline = new SlidePipeline(
+                    output != null
+                            ? SlideWriter.of(primary, output, outputFormat, width, height, quality, options)
+                            : SlideWriter.of(primary, exportFile, width, height, quality, options),
+                    queueDepth,
+                    queueMemory * 1024L * 1024L,
+                    Platform::runLater);
+        } catch (SlideExportException e) {
+            completion.completeExceptionally(e);
+            return completion;
+        }
+        StartupTiming.mark("Profile and writer ready");
+        pendingRanges = browsers.size();
+        for (int i = 0; i < browsers.size(); i++) {
+            final int index = i;
+            final Browser browser = browsers.get(i);
+            final Profile profile = profiles.get(i);
+            profile.setDocument(primary.document);
+            if (fonts.isDone()) {
+                browser.load(rootURL, () -> deckLoaded(index, browser, profile), this::fail);
+            } else {
+                // the deck is laid out as it loads, so it is only loaded once the custom fonts are available
+                fonts.whenComplete((result, failure) -> Platform.runLater(() -> {
+                    if (!completion.isDone()) {
+                        browser.load(rootURL, () -> deckLoaded(index, browser, profile), this::fail);
+                    }
+                }));
+            }
+        }
+        return completion;
+    }
+
+    /**
+     * Cancels the export. The browsers stop capturing slides, queued slides are dropped and the writer is closed
+     * without finishing the export, which completes exceptionally. Must be called from the JavaFX application thread.
+     */
+    public void cancel() {
+        if (completion.isDone()) {
+            return;
+        }
+        SlideExportException cancelled = new SlideExportException(new CancellationException("Export cancelled"));
+        for (Browser browser : browsers) {
+            browser.cancel();
+        }
+        if (pipeline != null) {
+            pipeline.abort(cancelled);
+        }
+        completion.completeExceptionally(cancelled);
+    }
+
+    private void deckLoaded(final int index, final Browser browser, final Profile profile) {
+        if (completion.isDone()) {
+            // failed or cancelled while the deck was loading
+            return;
+        }
+        if (index == 0) {
+            StartupTiming.mark("Deck loaded");
+        }
+        profile.setup();
+        if (profile.isSettleDetectionEnabled()) {
+            profile.installSettleDetector();
+        }
+        profile.ready(() -> startRange(index, browser, profile));
+    }
+
+    private void startRange(final int index, final Browser browser, final Profile profile) {
+        int numSlides = profile.getSlideCount();
+        int concurrency = browsers.size();
+        if (numSlides > 0 && selection.first() > numSlides) {
+            fail(new SlideExportException(new IllegalArgumentException("No slide selected, the deck has " + numSlides + " slides")));
+            return;
+        }
+        if (numSlides <= 0 && concurrency > 1) {
+            // the deck cannot be split, so the first browser exports everything
+            if (index > 0) {
+                rangeDone(profile, false);
+                return;
+            }
+            System.out.println("Number of slides is unknown, exporting with a single browser");
+            concurrency = 1;
+        }
+        int firstSlide = selection.first();
+        int lastSlide = -1;
+        if (concurrency > 1) {
+            // the selected slides are split into contiguous ranges
+            int[] slides = selection.toArray(numSlides);
+            int share = slides.length / concurrency;
+            int remainder = slides.length % concurrency;
+            int first = index * share + Math.min(index, remainder);
+            int last = first + share - 1 + (index < remainder ? 1 : 0);
+            if (first > last) {
+                // more browsers than slides
+                rangeDone(profile, false);
+                return;
+            }
+            firstSlide = slides[first];
+            lastSlide = slides[last];
+        }
+        browser.exportSlides(profile, selection, firstSlide, lastSlide, numSlides, pipeline,
+                lastOfExport -> rangeDone(profile, lastOfExport),
+                this::fail);
+    }
+
+    private void rangeDone(final Profile profile, final boolean lastOfExport) {
+        if (lastOfExport) {
+            reachedEnd = true;
+            lastProfile = profile;
+        }
+        if (--pendingRanges > 0 || completion.isDone()) {
+            return;
+        }
+        if (!reachedEnd) {
+            fail(new SlideExportException(new IllegalStateException("The end of the slide deck was never reached")));
+            return;
+        }
+        // the profile finishes the document once the last slide is written: the writer thread waits while the
+        // finish hook runs on the JavaFX application thread, where it can use the web engine
+        final Profile finishing = lastProfile;
+        pipeline.close(() -> {
+            CompletableFuture<Void> finished = new CompletableFuture<>();
+            Platform.runLater(() -> {
+                try {
+                    finishing.finish();
+                    finished.complete(null);
+                } catch (RuntimeException e) {
+                    finished.completeExceptionally(e);
+                }
+            });
+            finished.join();
+        }).whenComplete((result, failure) -> Platform.runLater(() -> {
+            if (failure != null) {
+                completion.completeExceptionally(failure);
+            } else {
+                long totalWait = 0;
+                for (Browser browser : browsers) {
+                    totalWait += browser.getTotalWait();
+                }
+                System.out.printf("Export complete! Waited %d ms in total for slides to settle.%n", totalWait);
+                StartupTiming.mark("Export complete");
+                ResourceCache resourceCache = ResourceCache.getInstalled();
+                if (resourceCache != null) {
+                    resourceCache.printStatistics();
+                }
+                SlideMetrics metrics = pipeline.getMetrics();
+                metrics.stop();
+                Object report = options.get("metrics");
+                if (report != null) {
+                    metrics.printSummary();
+                    try {
+                        metrics.writeReport(new File(report.toString()));
+                        System.out.println("Metrics report written to " + report);
+                    } catch (IOException e) {
+                        System.err.println("Unable to write metrics report: " + e.getMessage());
+                    }
+                }
+                completion.complete(null);
+            }
+        }));
+    }
+
+    private void fail(final Exception e) {
+        if (!completion.isDone()) {
+            pipeline.close();
+            completion.completeExceptionally(e);
+        }
+    }
+}
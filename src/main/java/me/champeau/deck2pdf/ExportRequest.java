@@ -0,0 +1,143 @@
+/*
+ * Copyright 2003-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.champeau.deck2pdf;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Describes an export done with {@link Deck2Pdf#export(ExportRequest)}: the slide deck, where the export is written,
+ * and the options, which are the same as the command line options. For example:
+ * <code>
+ *     new ExportRequest("slides.html").setProfile("revealjs").setOutput(response.getOutputStream())
+ * </code>
+ * The export is written to <code>output.pdf</code> unless an output file or stream is set.
+ *
+ * @author Cédric Champeau
+ */
+public class ExportRequest {
+    private final String deck;
+    private final Map<String, String> options = new HashMap<>();
+    private File outputFile;
+    private OutputStream outputStream;
+    private String format = "pdf";
+
+    /**
+     * Creates a request.
+     * @param deck the URL of the slide deck, or the path of a local file
+     */
+    public ExportRequest(final String deck) {
+        this.deck = deck;
+    }
+
+    public String getDeck() {
+        return deck;
+    }
+
+    /**
+     * Writes the export to a file. The format is derived from the name of the file, like on the command line.
+     * @param file the export file, which may contain a number pattern for image formats
+     * @return this request
+     */
+    public ExportRequest setOutput(final File file) {
+        this.outputFile = file;
+        this.outputStream = null;
+        return this;
+    }
+
+    /**
+     * Writes the export to a stream, in the format set with {@link #setFormat(String)}. The stream is flushed, but
+     * not closed, once the export is complete.
+     * @param out the stream
+     * @return this request
+     */
+    public ExportRequest setOutput(final OutputStream out) {
+        this.outputStream = out;
+        this.outputFile = null;
+        return this;
+    }
+
+    /**
+     * Writes the export to a channel, in the format set with {@link #setFormat(String)}. The channel is not closed
+     * once the export is complete.
+     * @param channel the channel
+     * @return this request
+     */
+    public ExportRequest setOutput(final WritableByteChannel channel) {
+        return setOutput(Channels.newOutputStream(channel));
+    }
+
+    public File getOutputFile() {
+        return outputFile;
+    }
+
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    /**
+     * Sets the format of an export written to a stream. Only formats producing a single file are supported: <code>pdf</code>, <code>zip</code> and <code>tiff</code>.
+     * @param format the format, <code>pdf</code> by default
+     * @return this request
+     */
+    public ExportRequest setFormat(final String format) {
+        this.format = format;
+        return this;
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    public ExportRequest setProfile(final String profile) {
+        return setOption("profile", profile);
+    }
+
+    public ExportRequest setWidth(final int width) {
+        return setOption("width", String.valueOf(width));
+    }
+
+    public ExportRequest setHeight(final int height) {
+        return setOption("height", String.valueOf(height));
+    }
+
+    public ExportRequest setQuality(final float quality) {
+        return setOption("quality", String.valueOf(quality));
+    }
+
+    /**
+     * Sets an option, as it would be set on the command line. For example, <code>setOption("slides", "1-10")</code>
+     * is the same as <code>--slides=1-10</code>.
+     * @param name the name of the option
+     * @param value the value of the option
+     * @return this request
+     */
+    public ExportRequest setOption(final String name, final String value) {
+        options.put(name, value);
+        return this;
+    }
+
+    /**
+     * Returns the options of the export, as they would be set on the command line.
+     */
+    public Map<String, String> getOptions() {
+        return options;
+    }
+}
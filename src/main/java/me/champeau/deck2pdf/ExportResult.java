@@ -0,0 +1,76 @@
+/*
+ * Copyright 2003-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.champeau.deck2pdf;
+
+import me.champeau.deck2pdf.writer.SlideMetrics;
+
+import java.io.File;
+
+/**
+ * The result of an export done with {@link Deck2Pdf#export(ExportRequest)}.
+ *
+ * @author Cédric Champeau
+ */
+public class ExportResult {
+    private final int slideCount;
+    private final long bytesWritten;
+    private final long elapsedMillis;
+    private final File outputFile;
+    private final SlideMetrics metrics;
+
+    ExportResult(final int slideCount, final long bytesWritten, final long elapsedMillis, final File outputFile, final SlideMetrics metrics) {
+        this.slideCount = slideCount;
+        this.bytesWritten = bytesWritten;
+        this.elapsedMillis = elapsedMillis;
+        this.outputFile = outputFile;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Returns the number of exported slides.
+     */
+    public int getSlideCount() {
+        return slideCount;
+    }
+
+    /**
+     * Returns the number of bytes written to the output stream, or to the export files.
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Returns the duration of the export, in milliseconds.
+     */
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    /**
+     * Returns the export file, or null if the export was written to a stream.
+     */
+    public File getOutputFile() {
+        return outputFile;
+    }
+
+    /**
+     * Returns the time spent by each slide in every phase of the export.
+     */
+    public SlideMetrics getMetrics() {
+        return metrics;
+    }
+}
@@ -0,0 +1,381 @@
+/*
+ * Copyright 2003-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.champeau.deck2pdf;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import javafx.application.Platform;
+import javafx.scene.Scene;
+import javafx.scene.paint.Color;
+import javafx.stage.Stage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A long running export server. It keeps the JavaFX toolkit and a pool of warm {@link Browser browsers} alive,
+ * and exports slide decks on demand, so that exports don't pay the startup cost of the JVM, JavaFX and WebKit.
+ * <p/>
+ * The server listens on the loopback interface only, but any local process can submit jobs, so jobs can't choose
+ * the files read or written by the server: custom profiles and file options like <code>metrics</code> or
+ * <code>cacheDir</code> can only be set when starting the server, and the <code>output</code> of a job is resolved
+ * in the <code>outputDir</code> of the server, without which jobs can't write files. Jobs are submitted with <code>GET</code> or <code>POST</code>
+ * requests on <code>/export</code>, using the same options as the command line (<code>url</code>, <code>profile</code>,
+ * <code>format</code>, <code>width</code>, <code>height</code>, <code>quality</code>, ...). If an <code>output</code>
+ * path is given, the export is written there, otherwise the exported PDF is sent back in the response. Jobs are
+ * queued until a browser is available, and browsers are recycled after a configurable number of jobs. A job which
+ * doesn't complete within its <code>jobTimeout</code>, in seconds, fails and the browser running it is replaced.
+ * A request on <code>/shutdown</code> stops the server.
+ *
+ * @author Cédric Champeau
+ */
+class ExportServer {
+    static final int DEFAULT_POOL_SIZE = 2;
+    static final int DEFAULT_RECYCLE_AFTER = 50;
+    static final int DEFAULT_JOB_TIMEOUT = 600;
+
+    // options naming local files or programs, which only the command line of the server can set
+    private static final List<String> SERVER_OPTIONS = Arrays.asList(
+            "metrics", "cacheDir", "resourceCacheDir", "fontsdir", "profileCache", "qpdf", "outputDir");
+
+    private final Map<String, String> defaults;
+    private final CustomFonts fonts;
+    private final int poolSize;
+    private final int recycleAfter;
+    private final File outputDir;
+
+    // accessed from the JavaFX application thread only
+    private final Deque<Job> jobs = new ArrayDeque<>();
+    private final Deque<PooledBrowser> idle = new ArrayDeque<>();
+
+    private HttpServer server;
+
+    /**
+     * Creates a server.
+     * @param defaults the default options, overriden by the options of each job
+     * @param fonts the custom fonts loaded for each job, or null
+     * @param poolSize the number of browsers kept alive
+     * @param recycleAfter the number of jobs after which a browser is replaced with a fresh one
+     */
+    ExportServer(final Map<String, String> defaults, final CustomFonts fonts, final int poolSize, final int recycleAfter) {
+        this.defaults = defaults;
+        this.fonts = fonts;
+        this.poolSize = Math.max(1, poolSize);
+        this.recycleAfter = Math.max(1, recycleAfter);
+        this.outputDir = defaults.containsKey("outputDir") ? new File(defaults.get("outputDir")) : null;
+    }
+
+    /**
+     * Starts the server. Must be called from the JavaFX application thread.
+     * @param port the port to listen to, on the loopback interface
+     * @throws IOException if the server cannot be started
+     */
+    public void start(final int port) throws IOException {
+        Platform.setImplicitExit(false);
+        for (int i = 0; i < poolSize; i++) {
+            idle.add(new PooledBrowser());
+        }
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/export", this::handleExport);
+        server.createContext("/shutdown", this::handleShutdown);
+        server.setExecutor(Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "deck2pdf-server");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+        System.out.printf("Export server listening on http://%s:%d/export with %d browsers%n",
+                server.getAddress().getHostString(), server.getAddress().getPort(), poolSize);
+    }
+
+    private void handleShutdown(final HttpExchange exchange) throws IOException {
+        respond(exchange, 200, "Shutting down\n");
+        server.stop(0);
+        Platform.exit();
+    }
+
+    private void handleExport(final HttpExchange exchange) throws IOException {
+        Map<String, String> params = parseParameters(exchange.getRequestURI().getRawQuery());
+        if ("POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+            params.putAll(parseParameters(readBody(exchange.getRequestBody())));
+        }
+        for (String option : SERVER_OPTIONS) {
+            if (params.containsKey(option)) {
+                respond(exchange, 400, "The '" + option + "' option can only be set when starting the server\n");
+                return;
+            }
+        }
+        String profile = params.get("profile");
+        if (profile != null && (profile.endsWith(".groovy") || profile.endsWith(".properties"))) {
+            respond(exchange, 400, "Custom profiles can only be set when starting the server\n");
+            return;
+        }
+        if (params.containsKey("output")) {
+            String output = resolveOutput(params.get("output"));
+            if (output == null) {
+                respond(exchange, 400, outputDir == null
+                        ? "The server was not started with an 'outputDir', so jobs can't write files\n"
+                        : "The 'output' parameter must be in " + outputDir + "\n");
+                return;
+            }
+            params.put("output", output);
+        }
+        Map<String, String> options = new HashMap<>(defaults);
+        options.putAll(params);
+        String deck = options.get("url");
+        if (deck == null) {
+            respond(exchange, 400, "Missing 'url' parameter\n");
+            return;
+        }
+        String format = options.containsKey("format") ? options.get("format") : "pdf";
+        String output = options.get("output");
+        File exportFile;
+        if (output != null) {
+            exportFile = new File(output);
+        } else if ("pdf".equals(format)) {
+            exportFile = File.createTempFile("deck2pdf", ".pdf");
+        } else {
+            respond(exchange, 400, "An 'output' parameter is required for the " + format + " format\n");
+            return;
+        }
+        Job job;
+        try {
+            job = new Job(Main.resolveDeckURL(deck), exportFile, options, output == null);
+        } catch (MalformedURLException e) {
+            respond(exchange, 400, "Invalid 'url' parameter: " + e.getMessage() + "\n");
+            return;
+        }
+        Platform.runLater(() -> {
+            jobs.add(job);
+            runNext();
+        });
+        int timeout = Main.parseArgumentAsInt(options, "jobTimeout", DEFAULT_JOB_TIMEOUT);
+        try {
+            job.done.get(timeout, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            Platform.runLater(() -> abandon(job));
+            if (output == null) {
+                Files.deleteIfExists(exportFile.toPath());
+            }
+            respond(exchange, 504, "Export timed out after " + timeout + " seconds\n");
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            respond(exchange, 500, "Interrupted\n");
+            return;
+        } catch (ExecutionException e) {
+            if (output == null) {
+                Files.deleteIfExists(exportFile.toPath());
+            }
+            respond(exchange, 500, "Export failed: " + e.getCause() + "\n");
+            return;
+        }
+        if (output != null) {
+            respond(exchange, 200, "Exported " + deck + " to " + exportFile.getAbsolutePath() + "\n");
+        } else {
+            try {
+                exchange.getResponseHeaders().set("Content-Type", "application/pdf");
+                exchange.sendResponseHeaders(200, exportFile.length());
+                try (OutputStream out = exchange.getResponseBody()) {
+                    Files.copy(exportFile.toPath(), out);
+                }
+            } finally {
+                Files.deleteIfExists(exportFile.toPath());
+            }
+        }
+    }
+
+    private void runNext() {
+        while (!jobs.isEmpty() && !idle.isEmpty()) {
+            run(idle.poll(), jobs.poll());
+        }
+    }
+
+    private void run(final PooledBrowser pooled, final Job job) {
+        Map<String, String> options = job.options;
+        int width = Main.parseArgumentAsInt(options, "width", Main.WIDTH);
+        int height = Main.parseArgumentAsInt(options, "height", Main.HEIGHT);
+        float quality = Main.parseArgumentAsFloat(options, "quality", Main.COMPRESSION_QUALITY);
+        pooled.browser.setSize(width, height);
+        pooled.stage.sizeToScene();
+        job.browser = pooled;
+        CompletableFuture<Void> export;
+        try {
+            DeckExporter exporter = new DeckExporter(job.url, job.exportFile.getPath(), options, width, height, quality);
+            exporter.setQueueDepth(Main.parseArgumentAsInt(options, "queueDepth", SlidePipeline.DEFAULT_QUEUE_DEPTH));
+            exporter.setQueueMemory(Main.parseArgumentAsInt(options, "queueMemory", SlidePipeline.DEFAULT_QUEUE_MEMORY_MB));
+            exporter.addBrowser(pooled.browser);
+            if (fonts != null) {
+                exporter.setFonts(fonts.loadFontsOf(job.url));
+            }
+            job.exporter = exporter;
+            export = exporter.export();
+        } catch (RuntimeException e) {
+            export = new CompletableFuture<>();
+            export.completeExceptionally(e);
+        }
+        export.whenComplete((result, failure) -> Platform.runLater(() -> {
+            if (job.abandoned) {
+                // the browser has already been replaced, and the response sent
+                if (job.temporary) {
+                    job.exportFile.delete();
+                }
+                return;
+            }
+            release(pooled);
+            if (failure != null) {
+                job.done.completeExceptionally(failure);
+            } else {
+                job.done.complete(null);
+            }
+        }));
+    }
+
+    /**
+     * Gives up on a job which timed out. If it is still queued, it is simply dropped, otherwise its export is
+     * cancelled, and the browser running it, which may be stuck, is replaced with a fresh one.
+     */
+    private void abandon(final Job job) {
+        if (jobs.remove(job) || job.done.isDone()) {
+            return;
+        }
+        job.abandoned = true;
+        job.done.completeExceptionally(new TimeoutException("Export of " + job.url + " timed out"));
+        if (job.exporter != null) {
+            job.exporter.cancel();
+        }
+        job.browser.browser.getEngine().load("about:blank");
+        job.browser.stage.close();
+        idle.add(new PooledBrowser());
+        runNext();
+    }
+
+    private void release(final PooledBrowser pooled) {
+        if (++pooled.jobs >= recycleAfter) {
+            pooled.stage.close();
+            idle.add(new PooledBrowser());
+        } else {
+            idle.add(pooled);
+        }
+        runNext();
+    }
+
+    /**
+     * Resolves the output of a job in the output directory of the server. Each output of a composite export is
+     * resolved, and must not escape the output directory.
+     * @return the resolved output, or null if the job cannot write it
+     */
+    private String resolveOutput(final String output) throws IOException {
+        if (outputDir == null) {
+            return null;
+        }
+        String root = outputDir.getCanonicalPath() + File.separator;
+        StringBuilder resolved = new StringBuilder();
+        for (String spec : output.split(",")) {
+            File file = new File(outputDir, spec.trim()).getCanonicalFile();
+            if (!file.getPath().startsWith(root)) {
+                return null;
+            }
+            resolved.append(resolved.length() == 0 ? "" : ",").append(file.getPath());
+        }
+        return resolved.toString();
+    }
+
+    private static void respond(final HttpExchange exchange, final int status, final String message) throws IOException {
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static String readBody(final InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static Map<String, String> parseParameters(final String query) throws UnsupportedEncodingException {
+        Map<String, String> params = new HashMap<>();
+        if (query == null || query.isEmpty()) {
+            return params;
+        }
+        for (String pair : query.split("&")) {
+            int idx = pair.indexOf('=');
+            String key = idx < 0 ? pair : pair.substring(0, idx);
+            String value = idx < 0 ? "true" : pair.substring(idx + 1);
+            params.put(URLDecoder.decode(key, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+        }
+        return params;
+    }
+
+    private static class Job {
+        private final String url;
+        private final File exportFile;
+        private final Map<String, String> options;
+        private final boolean temporary;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+        // accessed from the JavaFX application thread only
+        private PooledBrowser browser;
+        private DeckExporter exporter;
+        private boolean abandoned;
+
+        private Job(final String url, final File exportFile, final Map<String, String> options, final boolean temporary) {
+            this.url = url;
+            this.exportFile = exportFile;
+            this.options = options;
+            this.temporary = temporary;
+        }
+    }
+
+    private static class PooledBrowser {
+        private final Browser browser = new Browser(Main.WIDTH, Main.HEIGHT);
+        private final Stage stage = new Stage();
+        private int jobs;
+
+        private PooledBrowser() {
+            stage.setTitle("PDF Export Web View");
+            stage.setScene(new Scene(browser, Color.web("#666970")));
+            stage.show();
+        }
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright 2003-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.champeau.deck2pdf;
+
+import me.champeau.deck2pdf.writer.CacheFiles;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * An index of the fonts found in a custom fonts directory, giving the family and the style of each font file.
+ * The index is stored in <code>~/.deck2pdf/fonts</code>, and each file is identified by its size and its last
+ * modification date: only new or modified files are read again when the index is opened, so that large font
+ * directories don't slow down every export.
+ * <p/>
+ * Families and styles are read from the <code>name</code> table of TrueType and OpenType files, including the
+ * first font of TrueType collections. Other files are recorded in the index, without a family, and never loaded.
+ *
+ * @author Cédric Champeau
+ */
+class FontIndex {
+    private static final int SFNT_TRUETYPE = 0x00010000;
+    private static final int SFNT_OPENTYPE = 0x4f54544f; // OTTO
+    private static final int SFNT_APPLE = 0x74727565; // true
+    private static final int TRUETYPE_COLLECTION = 0x74746366; // ttcf
+    private static final int NAME_TABLE = 0x6e616d65; // name
+    private static final int FAMILY = 1;
+    private static final int SUBFAMILY = 2;
+    private static final int TYPOGRAPHIC_FAMILY = 16;
+    private static final int TYPOGRAPHIC_SUBFAMILY = 17;
+
+    private final File fontsDir;
+    private final Map<String, Entry> entries;
+
+    private FontIndex(final File fontsDir, final Map<String, Entry> entries) {
+        this.fontsDir = fontsDir;
+        this.entries = entries;
+    }
+
+    /**
+     * Opens the index of a fonts directory, updating it if files were added, modified or removed.
+     * @param fontsDir the fonts directory
+     * @return the up-to-date index
+     */
+    static FontIndex open(final File fontsDir) {
+        File indexFile = indexFile(fontsDir);
+        Map<String, Entry> previous = read(indexFile);
+        Map<String, Entry> entries = new LinkedHashMap<>();
+        boolean changed = false;
+        File[] files = fontsDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.isFile()) {
+                    continue;
+                }
+                Entry entry = previous.remove(file.getName());
+                if (entry == null || entry.size != file.length() || entry.lastModified != file.lastModified()) {
+                    entry = scan(file);
+                    changed = true;
+                }
+                entries.put(file.getName(), entry);
+            }
+        }
+        if (changed || !previous.isEmpty()) {
+            try {
+                write(indexFile, entries.values());
+            } catch (IOException e) {
+                System.err.println("Unable to write font index " + indexFile + ": " + e.getMessage());
+            }
+        }
+        return new FontIndex(fontsDir, entries);
+    }
+
+    /**
+     * Returns the font files of the given families.
+     * @param families lower case family names, or null for every font of the index
+     */
+    List<Entry> getFonts(final Collection<String> families) {
+        List<Entry> fonts = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            if (entry.isFont() && (families == null || entry.matches(families))) {
+                fonts.add(entry);
+            }
+        }
+        return fonts;
+    }
+
+    File getFile(final Entry entry) {
+        return new File(fontsDir, entry.fileName);
+    }
+
+    private static File indexFile(final File fontsDir) {
+        String key = CacheFiles.key(fontsDir.getAbsolutePath());
+        return new File(CacheFiles.directory(null, "fonts"), key.substring(0, 16) + ".idx");
+    }
+
+    private static Map<String, Entry> read(final File indexFile) {
+        Map<String, Entry> entries = new LinkedHashMap<>();
+        if (!indexFile.isFile()) {
+            return entries;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(indexFile.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                if (fields.length == 5) {
+                    entries.put(fields[0], new Entry(fields[0], Long.valueOf(fields[1]), Long.valueOf(fields[2]), fields[3], fields[4]));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // the index is rebuilt
+            entries.clear();
+        }
+        return entries;
+    }
+
+    private static void write(final File indexFile, final Collection<Entry> entries) throws IOException {
+        File dir = indexFile.getParentFile();
+        Files.createDirectories(dir.toPath());
+        File tmp = File.createTempFile("fonts", ".tmp", dir);
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8))) {
+            for (Entry entry : entries) {
+                out.println(entry.fileName + "\t" + entry.size + "\t" + entry.lastModified + "\t" + entry.family + "\t" + entry.style);
+            }
+        }
+        Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static Entry scan(final File file) {
+        String[] names = {"", ""};
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            names = readNames(raf);
+        } catch (IOException | RuntimeException e) {
+            // not a font file we can load
+        }
+        return new Entry(file.getName(), file.length(), file.lastModified(), names[0], names[1]);
+    }
+
+    /**
+     * Reads the family and the style of a font from its name table.
+     * @return the family and the style, or empty strings if the file is not a TrueType or OpenType font
+     */
+    private static String[] readNames(final RandomAccessFile raf) throws IOException {
+        long fontOffset = 0;
+        int version = raf.readInt();
+        if (version == TRUETYPE_COLLECTION) {
+            raf.readInt();
+            if (raf.readInt() == 0) {
+                return new String[]{"", ""};
+            }
+            fontOffset = raf.readInt() & 0xffffffffL;
+            raf.seek(fontOffset);
+            version = raf.readInt();
+        }
+        if (version != SFNT_TRUETYPE && version != SFNT_OPENTYPE && version != SFNT_APPLE) {
+            return new String[]{"", ""};
+        }
+        int numTables = raf.readUnsignedShort();
+        raf.skipBytes(6);
+        long nameOffset = -1;
+        for (int i = 0; i < numTables; i++) {
+            int tag = raf.readInt();
+            raf.readInt();
+            long offset = raf.readInt() & 0xffffffffL;
+            raf.readInt();
+            if (tag == NAME_TABLE) {
+                nameOffset = offset;
+            }
+        }
+        if (nameOffset < 0) {
+            return new String[]{"", ""};
+        }
+        raf.seek(nameOffset);
+        raf.readUnsignedShort();
+        int count = raf.readUnsignedShort();
+        long storage = nameOffset + raf.readUnsignedShort();
+        // best name found for each name id, with its score
+        String[] names = new String[TYPOGRAPHIC_SUBFAMILY + 1];
+        int[] scores = new int[TYPOGRAPHIC_SUBFAMILY + 1];
+        for (int i = 0; i < count; i++) {
+            raf.seek(nameOffset + 6 + 12L * i);
+            int platform = raf.readUnsignedShort();
+            int encoding = raf.readUnsignedShort();
+            int language = raf.readUnsignedShort();
+            int nameId = raf.readUnsignedShort();
+            int length = raf.readUnsignedShort();
+            int offset = raf.readUnsignedShort();
+            if (nameId != FAMILY && nameId != SUBFAMILY && nameId != TYPOGRAPHIC_FAMILY && nameId != TYPOGRAPHIC_SUBFAMILY) {
+                continue;
+            }
+            // prefer english Windows names, then Unicode names, then Macintosh roman names
+            int score;
+            if (platform == 3 && (encoding == 1 || encoding == 0)) {
+                score = language == 0x409 ? 4 : 3;
+            } else if (platform == 0) {
+                score = 2;
+            } else if (platform == 1 && encoding == 0) {
+                score = language == 0 ? 1 : 0;
+            } else {
+                continue;
+            }
+            if (score <= scores[nameId] && names[nameId] != null) {
+                continue;
+            }
+            byte[] bytes = new byte[length];
+            raf.seek(storage + offset);
+            raf.readFully(bytes);
+            names[nameId] = new String(bytes, platform == 1 ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_16BE).trim();
+            scores[nameId] = score;
+        }
+        String family = names[TYPOGRAPHIC_FAMILY] != null ? names[TYPOGRAPHIC_FAMILY] : names[FAMILY];
+        String style = names[TYPOGRAPHIC_SUBFAMILY] != null ? names[TYPOGRAPHIC_SUBFAMILY] : names[SUBFAMILY];
+        if (family == null || family.isEmpty()) {
+            return new String[]{"", ""};
+        }
+        // tabs would break the index format
+        return new String[]{family.replace('\t', ' '), style == null ? "" : style.replace('\t', ' ')};
+    }
+
+    static class Entry {
+        private final String fileName;
+        private final long size;
+        private final long lastModified;
+        private final String family;
+        private final String style;
+
+        private Entry(final String fileName, final long size, final long lastModified, final String family, final String style) {
+            this.fileName = fileName;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.family = family;
+            this.style = style;
+        }
+
+        boolean isFont() {
+            return !family.isEmpty();
+        }
+
+        String getFamily() {
+            return family;
+        }
+
+        String getStyle() {
+            return style;
+        }
+
+        /**
+         * Tells if this font is referenced by one of the given family names, which may also be full font names,
+         * like <code>Yanone Kaffeesatz Bold</code>.
+         * @param families lower case family names
+         */
+        boolean matches(final Collection<String> families) {
+            String name = family.toLowerCase(Locale.ROOT);
+            return families.contains(name) || families.contains(name + " " + style.toLowerCase(Locale.ROOT));
+        }
+
+        @Override
+        public String toString() {
+            return family + (style.isEmpty() ? "" : " " + style) + " (" + fileName + ")";
+        }
+    }
+}
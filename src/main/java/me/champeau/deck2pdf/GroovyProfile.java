@@ -20,9 +20,11 @@ import groovy.lang.Binding;
 import groovy.lang.Closure;
 import groovy.lang.GroovyShell;
 import groovy.lang.MissingPropertyException;
+import groovy.lang.Script;
 import javafx.scene.web.WebEngine;
 import netscape.javascript.JSObject;
 import org.codehaus.groovy.runtime.DefaultGroovyMethods;
+import org.codehaus.groovy.runtime.InvokerHelper;
 import org.codehaus.groovy.runtime.MethodClosure;
 
 import java.io.Reader;
@@ -40,16 +42,97 @@ import java.util.Map;
  *     totalSlides = { js("\$.deck('getSlides').length") }
  *     nextSlide = { js("\$.deck('next')") }
  * </code>
+ * The <code>nextSlide</code>, <code>isLastSlide</code>, <code>totalSlides</code> and <code>settled</code> hooks may also
+ * be javascript code instead of closures. If the navigation hooks are all javascript code, each slide is
+ * navigated and inspected with a single call to the web engine:
+ * <code>
+ *     nextSlide = "\$.deck('next')"
+ *     totalSlides = "\$.deck('getSlides').length"
+ * </code>
+ * The optional <code>gotoSlide</code> hook jumps directly to a slide. As a closure, it is called with the slide
+ * number, starting from 1. As javascript code, the slide number is available as the <code>slide</code> variable:
+ * <code>
+ *     gotoSlide = "\$.deck('go', slide - 1)"
+ * </code>
+ * Hooks are resolved once the script is evaluated, and again after the <code>setup</code> hook is called.
  */
 public class GroovyProfile extends Profile {
     private final Binding binding;
+
+    private Hook isLastSlideHook;
+    private Hook nextSlideHook;
+    private Hook totalSlidesHook;
+    private Hook settledHook;
+    private Hook gotoSlideHook;
+    private Closure<?> setupHook;
+    private Closure<?> finishHook;
+    private Closure<?> readyHook;
+    private Object pauseHook;
+
     protected GroovyProfile(final WebEngine engine, final Map<String,?> options, final Reader script) {
         super(engine, options);
-        binding = new NullBinding();
-        binding.setVariable("engine", engine);
-        binding.setVariable("js", new MethodClosure(this, "executeJS"));
-        binding.setVariable("options", options);
+        binding = createBinding(options);
         new GroovyShell(binding).evaluate(script);
+        resolveHooks();
+    }
+
+    /**
+     * Creates a profile from an already compiled script, which avoids compiling the script at each launch.
+     * @param engine the web engine
+     * @param options the command line options
+     * @param script the compiled profile script
+     */
+    protected GroovyProfile(final WebEngine engine, final Map<String,?> options, final Class<? extends Script> script) {
+        super(engine, options);
+        binding = createBinding(options);
+        InvokerHelper.createScript(script, binding).run();
+        resolveHooks();
+    }
+
+    private Binding createBinding(final Map<String,?> options) {
+        Binding result = new NullBinding();
+        result.setVariable("engine", engine);
+        result.setVariable("js", new MethodClosure(this, "executeJS"));
+        result.setVariable("options", options);
+        return result;
+    }
+
+    /**
+     * Looks up the hooks defined by the script, so that calling a hook doesn't require a lookup in the binding.
+     */
+    private void resolveHooks() {
+        isLastSlideHook = hook("isLastSlide");
+        nextSlideHook = hook("nextSlide");
+        totalSlidesHook = hook("totalSlides");
+        settledHook = hook("settled");
+        gotoSlideHook = hook("gotoSlide");
+        setupHook = closure("setup");
+        finishHook = closure("finish");
+        readyHook = closure("ready");
+        pauseHook = binding.getVariables().get("pause");
+        if (pauseHook != null && !(pauseHook instanceof Closure) && !(pauseHook instanceof Integer)) {
+            throw new RuntimeException("'pause' must be an integer or a closure");
+        }
+    }
+
+    private Hook hook(final String name) {
+        Object value = binding.getVariables().get(name);
+        if (value == null) {
+            return null;
+        } else if (value instanceof Closure) {
+            return new Hook((Closure<?>) value, null);
+        } else if (value instanceof CharSequence) {
+            return new Hook(null, value.toString());
+        }
+        throw new RuntimeException("'" + name + "' must be a closure or javascript code");
+    }
+
+    private Closure<?> closure(final String name) {
+        Object value = binding.getVariables().get(name);
+        if (value != null && !(value instanceof Closure)) {
+            throw new RuntimeException("'" + name + "' must be a closure");
+        }
+        return (Closure<?>) value;
     }
 
     public Object getVariable(final String name) {
@@ -58,6 +141,7 @@ public class GroovyProfile extends Profile {
 
     public void setVariable(final String name, final Object value) {
         binding.setVariable(name, value);
+        resolveHooks();
     }
 
     public Object executeJS(String code) {
@@ -77,50 +161,88 @@ public class GroovyProfile extends Profile {
     }
 
     @Override
-    @SuppressWarnings("unchecked")
     public boolean isLastSlide(final int slideIdx) {
-        Closure<Boolean> fun = (Closure<Boolean>) binding.getVariable("isLastSlide");
-        if (fun==null) {
+        if (isLastSlideHook==null) {
             return getSlideCount()==slideIdx;
         }
-        return fun.call();
+        return Boolean.TRUE.equals(isLastSlideHook.call());
     }
 
     @Override
     public void nextSlide() {
-        ((Closure)binding.getVariable("nextSlide")).call();
+        if (nextSlideHook==null) {
+            throw new RuntimeException("Profile doesn't define the nextSlide hook");
+        }
+        nextSlideHook.call();
+    }
+
+    @Override
+    public boolean gotoSlide(final int slideIdx) {
+        if (gotoSlideHook==null) {
+            return false;
+        }
+        if (gotoSlideHook.js!=null) {
+            executeGotoSlide(gotoSlideHook.js, slideIdx);
+        } else {
+            gotoSlideHook.closure.call(slideIdx);
+        }
+        return true;
+    }
+
+    @Override
+    public SlideState step(final int slideIdx, final boolean advance) {
+        if (nextSlideHook!=null && nextSlideHook.js!=null
+                && (isLastSlideHook!=null || totalSlidesHook!=null)
+                && isJavascript(isLastSlideHook) && isJavascript(totalSlidesHook)) {
+            return executeStep(nextSlideHook.js,
+                    isLastSlideHook==null ? null : isLastSlideHook.js,
+                    totalSlidesHook==null ? null : totalSlidesHook.js,
+                    slideIdx, advance);
+        }
+        return super.step(slideIdx, advance);
+    }
+
+    private static boolean isJavascript(final Hook hook) {
+        return hook==null || hook.js!=null;
     }
 
     @Override
     public int getPause() {
-        Object pause = binding.getVariable("pause");
-        if (pause==null) {
+        if (pauseHook==null) {
             return super.getPause();
-        } else if (pause instanceof Closure) {
-            return (Integer)((Closure)pause).call();
-        } else if (pause instanceof Integer) {
+        } else if (pauseHook instanceof Closure) {
+            Object pause = ((Closure<?>) pauseHook).call();
+            if (!(pause instanceof Integer)) {
+                throw new RuntimeException("'pause' function returned an unexpected value");
+            }
             return (Integer) pause;
-        } else {
-            throw new RuntimeException("'pause' function returned an unexpected value");
         }
+        return (Integer) pauseHook;
+    }
+
+    @Override
+    public boolean isSettled() {
+        if (settledHook==null) {
+            return super.isSettled();
+        }
+        return Boolean.TRUE.equals(settledHook.call());
     }
 
     @Override
-    @SuppressWarnings("unchecked")
     public int getSlideCount() {
-        Closure<Integer> fun = (Closure<Integer>) binding.getVariable("totalSlides");
-        if (fun==null){
+        if (totalSlidesHook==null){
             return super.getSlideCount();
         }
-        return fun.call();
+        return ((Number) totalSlidesHook.call()).intValue();
     }
 
     @Override
     public void setup() {
         prepareEngine();
-        Closure fun = (Closure) binding.getVariable("setup");
-        if (fun!=null){
-            fun.call();
+        if (setupHook!=null){
+            setupHook.call();
+            // the setup hook may define other hooks
+            resolveHooks();
         }
     }
 
@@ -134,22 +256,37 @@ public class GroovyProfile extends Profile {
 
     @Override
     public void finish() {
-        Closure fun = (Closure) binding.getVariable("finish");
-        if (fun!=null){
-            fun.call();
+        if (finishHook!=null){
+            finishHook.call();
         }
     }
 
     @Override
     public void ready(Runnable r) {
-        Closure fun = (Closure) binding.getVariable("ready");
-        if (fun!=null){
-            fun.call(r);
+        if (readyHook!=null){
+            readyHook.call(r);
         } else {
             super.ready(r);
         }
     }
 
+    /**
+     * A hook of the profile, either a closure or javascript code.
+     */
+    private final class Hook {
+        private final Closure<?> closure;
+        private final String js;
+
+        private Hook(final Closure<?> closure, final String js) {
+            this.closure = closure;
+            this.js = js;
+        }
+
+        private Object call() {
+            return closure!=null ? closure.call() : executeJS(js);
+        }
+    }
+
     private static class NullBinding extends Binding {
         @Override
         public Object getVariable(final String name) {
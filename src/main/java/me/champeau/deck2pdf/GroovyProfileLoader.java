@@ -0,0 +1,90 @@
+/*
+ * Copyright 2003-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.champeau.deck2pdf;
+
+import groovy.lang.Script;
+import javafx.scene.web.WebEngine;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+
+/**
+ * Loads Groovy profiles. This is kept apart from {@link ProfileLoader}, so that Groovy is only loaded and
+ * initialized if a Groovy profile is actually used.
+ *
+ * @author Cédric Champeau
+ */
+final class GroovyProfileLoader {
+    private GroovyProfileLoader() {
+    }
+
+    /**
+     * Loads a profile bundled with deck2pdf. Bundled profiles are compiled at build time into a class named
+     * after the profile, which is used if available instead of compiling the script.
+     */
+    static Profile loadBuiltInProfile(final String profile, final InputStream resource, final WebEngine engine, final Map<String,?> options) {
+        try {
+            Class<?> script = Class.forName(profile, false, GroovyProfileLoader.class.getClassLoader());
+            if (Script.class.isAssignableFrom(script)) {
+                closeQuietly(resource);
+                return new GroovyProfile(engine, options, script.asSubclass(Script.class));
+            }
+        } catch (ClassNotFoundException | LinkageError e) {
+            // not precompiled, for example when running from an IDE
+        }
+        return loadProfileFromGroovy(resource, engine, options);
+    }
+
+    /**
+     * Loads a profile from a Groovy file, using the compiled script cache if enabled.
+     */
+    static Profile loadUserProfile(final File file, final WebEngine engine, final Map<String,?> options) throws FileNotFoundException {
+        ProfileScriptCache cache = ProfileScriptCache.fromOptions(options);
+        if (cache != null && file.isFile()) {
+            try {
+                String source = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+                return new GroovyProfile(engine, options, cache.load(source));
+            } catch (IOException e) {
+                System.err.println("Unable to use compiled profile cache: " + e.getMessage());
+            }
+        }
+        return loadProfileFromGroovy(new BufferedInputStream(new FileInputStream(file)), engine, options);
+    }
+
+    private static void closeQuietly(final InputStream stream) {
+        try {
+            stream.close();
+        } catch (IOException e) {
+            // nothing was read from the stream
+        }
+    }
+
+    private static GroovyProfile loadProfileFromGroovy(final InputStream resource, final WebEngine engine, final Map<String,?> options) {
+        return new GroovyProfile(
+              engine,
+              options,
+              new InputStreamReader(resource)
+        );
+    }
+}
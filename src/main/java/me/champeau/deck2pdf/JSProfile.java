@@ -31,6 +31,8 @@ public class JSProfile extends Profile {
 
     private String slideCountJS;
     private String nextSlideJS;
+    private String settledJS;
+    private String gotoSlideJS;
     private int pause = DEFAULT_PAUSE_MILLIS;
 
     public JSProfile(
@@ -60,6 +62,24 @@ public class JSProfile extends Profile {
         this.slideCountJS = slideCountJS;
     }
 
+    /**
+     * Sets the javascript code that will be used to tell if the current slide
+     * is ready to be captured. If not set, the default settle detector is used.
+     * @param settledJS a javascript code that returns a boolean
+     */
+    public void setSettledJS(final String settledJS) {
+        this.settledJS = settledJS;
+    }
+
+    /**
+     * Sets the javascript code that will be called to jump directly to a slide. The slide number,
+     * starting from 1, is available as the <code>slide</code> variable.
+     * @param gotoSlideJS javascript code jumping to a slide
+     */
+    public void setGotoSlideJS(final String gotoSlideJS) {
+        this.gotoSlideJS = gotoSlideJS;
+    }
+
     public void setPause(final int pause) {
         this.pause = pause;
     }
@@ -73,6 +93,14 @@ public class JSProfile extends Profile {
         return (Integer) engine.executeScript(slideCountJS);
     }
 
+    @Override
+    public boolean isSettled() {
+        if (settledJS==null) {
+            return super.isSettled();
+        }
+        return Boolean.TRUE.equals(engine.executeScript(settledJS));
+    }
+
     @Override
     public boolean isLastSlide(final int slideIdx) {
         return slideIdx==getSlideCount();
@@ -82,4 +110,18 @@ public class JSProfile extends Profile {
     public void nextSlide() {
         engine.executeScript(nextSlideJS);
     }
+
+    @Override
+    public boolean gotoSlide(final int slideIdx) {
+        if (gotoSlideJS==null) {
+            return false;
+        }
+        executeGotoSlide(gotoSlideJS, slideIdx);
+        return true;
+    }
+
+    @Override
+    public SlideState step(final int slideIdx, final boolean advance) {
+        return executeStep(nextSlideJS, null, slideCountJS, slideIdx, advance);
+    }
 }
@@ -1,17 +1,17 @@
 package me.champeau.deck2pdf;
 
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.scene.Scene;
-import javafx.scene.text.Font;
 import javafx.stage.Stage;
 
 import javafx.scene.paint.Color;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -37,15 +37,19 @@ import java.util.Map;
  */
 public class Main extends Application {
 
-    private final static String FONTS_DIRECTORY_OPTION = "fontsdir";
+    private final static String SERVER_OPTION = "server";
+    private final static String HEADLESS_OPTION = "headless";
+    private final static String STARTUP_TIMING_OPTION = "startup-timing";
+    private final static String[] FLAGS = {HEADLESS_OPTION, STARTUP_TIMING_OPTION};
+    private final static String MONOCLE_PLATFORM_FACTORY = "com.sun.glass.ui.monocle.MonoclePlatformFactory";
 
     public static final int WIDTH = 1500;
     public static final int HEIGHT = 1000;
     // JPG or PNG compression level / quality
     public static final float COMPRESSION_QUALITY = 95.0f;
 
-    private Scene scene;
     @Override public void start(Stage stage) {
+        StartupTiming.mark("JavaFX started");
         Map<String,String> opts = getParameters().getNamed();
         int width = parseArgumentAsInt(opts, "width", WIDTH);
         int height = parseArgumentAsInt(opts, "height", HEIGHT);
@@ -58,74 +62,198 @@ public class Main extends Application {
         }
 
         stage.setTitle("PDF Export Web View");
+        ResourceCache.install(opts);
+        if (opts.containsKey(SERVER_OPTION)) {
+            startServer(opts);
+            return;
+        }
         List<String> unnamed = getParameters().getUnnamed();
         if (unnamed.isEmpty()) {
             System.err.println("You must provide at least the name of the file to convert");
             System.exit(-1);
         }
         String path = null;
-        String firstArg = unnamed.get(0);
         try {
-            URL url = new URL(firstArg);
-            path = url.toString();
+            path = resolveDeckURL(unnamed.get(0));
         } catch (MalformedURLException e) {
-            String url = null;
-            try {
-                path = new File(firstArg).toURI().toURL().toString();
-            } catch (MalformedURLException e2) {
-                System.err.println("Unable to load source file:" + e2.getMessage());
-                System.exit(-1);
-            }
+            System.err.println("Unable to load source file:" + e.getMessage());
+            System.exit(-1);
         }
 
         String exportFile = "output." + format;
         if (unnamed.size()>1) {
             exportFile = unnamed.get(1);
         }
+        // several outputs can be written at once, like --output=slides.pdf,thumbs/%03d.jpg@320x
+        if (opts.containsKey("output")) {
+            exportFile = opts.get("output");
+        }
 
-        loadCustomFonts(opts);
-
-        Browser browser = new Browser(path, exportFile, width, height, quality);
-        scene = new Scene(browser, width, height, Color.web("#666970"));
-        stage.setScene(scene);
-        stage.show();
-        Profile profile = ProfileLoader.loadProfile(opts.get("profile"), browser.getEngine(), opts);
-        browser.doExport(profile, width, height);
+        DeckExporter exporter = new DeckExporter(path, exportFile, opts, width, height, quality);
+        CustomFonts fonts = CustomFonts.fromOptions(opts);
+        if (fonts != null) {
+            exporter.setFonts(fonts.loadFontsOf(path));
+        }
+        exporter.setQueueDepth(parseArgumentAsInt(opts, "queueDepth", SlidePipeline.DEFAULT_QUEUE_DEPTH));
+        exporter.setQueueMemory(parseArgumentAsInt(opts, "queueMemory", SlidePipeline.DEFAULT_QUEUE_MEMORY_MB));
+        int concurrency = Math.max(1, parseArgumentAsInt(opts, "concurrency", 1));
+        for (int i = 0; i < concurrency; i++) {
+            Stage browserStage = i == 0 ? stage : new Stage();
+            if (i > 0) {
+                browserStage.setTitle(stage.getTitle() + " #" + (i + 1));
+            }
+            Browser browser = new Browser(width, height);
+            browserStage.setScene(new Scene(browser, width, height, Color.web("#666970")));
+            browserStage.show();
+            exporter.addBrowser(browser);
+        }
+        exporter.export().whenComplete((result, failure) -> {
+            if (failure != null) {
+                System.err.println("Unable to export slide deck");
+                failure.printStackTrace();
+                System.exit(-1);
+            }
+            StartupTiming.print();
+            Platform.exit();
+        });
     }
 
+    /**
+     * Starts a long running export server instead of exporting a single deck. The value of the 'server'
+     * option is the port to listen to.
+     * @param opts the command line options, used as defaults for every export
+     */
+    private static void startServer(final Map<String, String> opts) {
+        Map<String, String> defaults = new HashMap<>(opts);
+        defaults.remove(SERVER_OPTION);
+        ExportServer server = new ExportServer(defaults, CustomFonts.fromOptions(opts),
+                parseArgumentAsInt(opts, "poolSize", ExportServer.DEFAULT_POOL_SIZE),
+                parseArgumentAsInt(opts, "recycleAfter", ExportServer.DEFAULT_RECYCLE_AFTER));
+        try {
+            server.start(Integer.valueOf(opts.get(SERVER_OPTION)));
+        } catch (IOException e) {
+            System.err.println("Unable to start export server: " + e.getMessage());
+            System.exit(-1);
+        }
+    }
 
     /**
-     * JavaFX 2.2 does not support CSS3 @font-face so this is a workaround that allows loading
-     * custom fonts from a directory specified on command line. The key for the command line
-     * option is 'fontsdir'
-     * @param opts the command line options
+     * Converts the slide deck argument, which may either be an URL or a path to a local file, into an URL.
+     * @param deck the URL or path of the slide deck
+     * @return the URL of the slide deck
+     * @throws MalformedURLException if the argument cannot be converted into an URL
      */
-    private static void loadCustomFonts(final Map<String, String> opts) {
-        String fontsDir = opts.get(FONTS_DIRECTORY_OPTION);
-        if (fontsDir!=null) {
-            File dir = new File(fontsDir);
-            for (File font : dir.listFiles()) {
-                if (font.isFile()) {
-                    try {
-                        Font.loadFont(new FileInputStream(font), -1);
-                        System.out.println("Loaded font " + font);
-                    } catch (FileNotFoundException e) {
-                        System.err.println("Unable to load font from file "+font);
-                    }
-                }
-            }
+    static String resolveDeckURL(final String deck) throws MalformedURLException {
+        try {
+            return new URL(deck).toString();
+        } catch (MalformedURLException e) {
+            return new File(deck).toURI().toURL().toString();
         }
     }
 
-    private int parseArgumentAsInt(final Map<String, String> opts, String key, int defaultValue) {
+    static int parseArgumentAsInt(final Map<String, String> opts, String key, int defaultValue) {
         return opts.get(key)!=null?Integer.valueOf(opts.get(key)):defaultValue;
     }
     
-    private float parseArgumentAsFloat(final Map<String, String> opts, String key, float defaultValue) {
+    static float parseArgumentAsFloat(final Map<String, String> opts, String key, float defaultValue) {
         return opts.get(key) != null ? Float.valueOf(opts.get(key)) :defaultValue;
     }
 
+    /**
+     * Converts flags given without a value, like <code>--headless</code>, into named parameters, like
+     * <code>--headless=true</code>, so that JavaFX doesn't consider them as unnamed parameters.
+     * @param args the command line arguments
+     * @return the normalized arguments
+     */
+    static String[] normalizeFlags(final String[] args) {
+        String[] result = args.clone();
+        for (int i = 0; i < result.length; i++) {
+            for (String flag : FLAGS) {
+                if (("--" + flag).equals(result[i])) {
+                    result[i] = "--" + flag + "=true";
+                }
+            }
+        }
+        return result;
+    }
+
+    private static boolean isFlagSet(final String[] args, final String flag) {
+        for (String arg : args) {
+            if (arg.startsWith("--" + flag + "=")) {
+                return Boolean.valueOf(arg.substring(flag.length() + 3));
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Configures JavaFX to render with the Monocle headless platform and the software pipeline, so that no
+     * display is required. This must be done before the JavaFX toolkit is started. The option is enabled with
+     * <code>--headless</code> or <code>--headless=true</code>.
+     * @param args the normalized command line arguments
+     */
+    static void configureHeadless(final String[] args) {
+        if (!isFlagSet(args, HEADLESS_OPTION)) {
+            return;
+        }
+        int width = WIDTH;
+        int height = HEIGHT;
+        for (String arg : args) {
+            if (arg.startsWith("--width=")) {
+                width = Integer.valueOf(arg.substring(8));
+            } else if (arg.startsWith("--height=")) {
+                height = Integer.valueOf(arg.substring(9));
+            }
+        }
+        try {
+            configureHeadless(width, height);
+        } catch (IllegalStateException e) {
+            System.err.println(e.getMessage());
+            System.exit(-1);
+        }
+    }
+
+    /**
+     * Configures JavaFX to render with the Monocle headless platform. This must be done before the JavaFX toolkit
+     * is started.
+     * @param width the largest width of the slides
+     * @param height the largest height of the slides
+     * @throws IllegalStateException if the Monocle platform is not on the classpath
+     */
+    static void configureHeadless(final int width, final int height) {
+        try {
+            Class.forName(MONOCLE_PLATFORM_FACTORY, false, Main.class.getClassLoader());
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Headless mode requires the Monocle platform on the classpath");
+        }
+        System.setProperty("glass.platform", "Monocle");
+        System.setProperty("monocle.platform", "Headless");
+        // the software pipeline doesn't require a GPU
+        System.setProperty("prism.order", "sw");
+        System.setProperty("java.awt.headless", "true");
+        // the virtual screen must be at least as large as the slides
+        System.setProperty("headless.geometry", Math.max(1280, width) + "x" + Math.max(800, height) + "-32");
+    }
+
+    /**
+     * Configures JavaFX to render with the software pipeline, which is the one used in headless mode, so that
+     * windowed and headless exports are pixel-identical. A pipeline explicitly set with <code>-Dprism.order</code> is
+     * kept. This must be done before the JavaFX toolkit is started.
+     */
+    static void configureRendering() {
+        if (System.getProperty("prism.order") == null) {
+            System.setProperty("prism.order", "sw");
+        }
+    }
+
     public static void main(String[] args){
-        launch(args);
+        String[] normalized = normalizeFlags(args);
+        if (isFlagSet(normalized, STARTUP_TIMING_OPTION)) {
+            StartupTiming.enable();
+        }
+        StartupTiming.mark("main");
+        configureRendering();
+        configureHeadless(normalized);
+        launch(normalized);
     }
 }
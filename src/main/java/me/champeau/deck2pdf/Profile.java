@@ -18,6 +18,11 @@ package me.champeau.deck2pdf;
 import com.itextpdf.text.Document;
 import javafx.scene.web.WebEngine;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
 
 /**
@@ -32,6 +37,9 @@ import java.util.Map;
 public abstract class Profile {
 
     protected static final int DEFAULT_PAUSE_MILLIS = 1000;
+    protected static final int DEFAULT_SETTLE_QUIET_MILLIS = 100;
+
+    private static final String SETTLE_DETECTOR_SCRIPT = "settle-detector.js";
     protected final WebEngine engine;
     protected final Map<String, ?> options;
 
@@ -68,13 +76,175 @@ public abstract class Profile {
     public abstract void nextSlide();
 
     /**
-     * Returns the time to wait before going to the next slide.
+     * Implement this method if the slide deck provides a way to jump directly to a slide. It is used to
+     * reach the first slide of a range without going through the previous slides.
+     * @param slideIdx the slide number, starting from 1
+     * @return true if the profile moved to the slide, false if jumping to a slide is not supported, in which
+     * case deck2pdf moves through the previous slides with {@link #step(int, boolean)}
+     */
+    public boolean gotoSlide(final int slideIdx) {
+        return false;
+    }
+
+    /**
+     * Executes javascript code jumping to a slide. The code is executed in a function which has the slide
+     * number, starting from 1, as its <code>slide</code> parameter.
+     * @param gotoSlideJS the code jumping to the slide
+     * @param slideIdx the slide number
+     */
+    protected void executeGotoSlide(final String gotoSlideJS, final int slideIdx) {
+        engine.executeScript("(function(slide) {\n" + gotoSlideJS + "\n})(" + slideIdx + ")");
+    }
+
+    /**
+     * Returns the state of the current slide, after optionally moving to the next slide. This is called once
+     * for each exported slide, so that navigating and inspecting the deck can be done in a single call to the
+     * web engine. The default implementation calls {@link #nextSlide()}, {@link #isLastSlide(int)},
+     * {@link #getSlideCount()} and {@link #getPause()}.
+     * @param slideIdx the number of the current slide, once the step is done
+     * @param advance true if the profile must move to the next slide first
+     * @return the state of the current slide
+     */
+    public SlideState step(final int slideIdx, final boolean advance) {
+        if (advance) {
+            nextSlide();
+        }
+        return new SlideState(isLastSlide(slideIdx), getSlideCount(), getPause());
+    }
+
+    /**
+     * Executes a step in a single call to the web engine. The navigation code is executed first if needed, then
+     * the script returns whether the slide is the last one and the slide count, joined into a string so that
+     * reading them doesn't require calls back into the web engine. The pause is read with {@link #getPause()}
+     * once the step is done, so that it applies to the new slide.
+     * @param nextSlideJS the code moving to the next slide
+     * @param isLastSlideJS the code telling if the current slide is the last one, or null to compare the slide
+     * number with the slide count
+     * @param slideCountJS the code returning the number of slides, or null if unknown
+     * @param slideIdx the number of the current slide, once the step is done
+     * @param advance true if the code moving to the next slide must be executed
+     * @return the state of the current slide
+     */
+    protected SlideState executeStep(final String nextSlideJS, final String isLastSlideJS, final String slideCountJS,
+                                     final int slideIdx, final boolean advance) {
+        // codes are evaluated in the global scope, as if they were executed with WebEngine#executeScript
+        String script = "(function(advance, slide) {"
+                + "var run = function(code) { return code === null ? undefined : (0, eval)(code); };"
+                + "if (advance) { run(" + toJSString(nextSlideJS) + "); }"
+                + "var count = run(" + toJSString(slideCountJS) + ");"
+                + "count = typeof count === 'number' && isFinite(count) ? Math.floor(count) : -1;"
+                + "var isLast = " + (isLastSlideJS == null ? "count === slide" : "!!run(" + toJSString(isLastSlideJS) + ")") + ";"
+                + "return [isLast, count].join();"
+                + "})(" + advance + ", " + slideIdx + ")";
+        String[] state = String.valueOf(engine.executeScript(script)).split(",");
+        return new SlideState(Boolean.valueOf(state[0]), parseCount(state[1]), getPause());
+    }
+
+    /**
+     * Parses the slide count returned by a step, which is unknown (-1) if it is not a valid int.
+     */
+    private static int parseCount(final String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String toJSString(final String code) {
+        if (code == null) {
+            return "null";
+        }
+        StringBuilder sb = new StringBuilder(code.length() + 2).append('"');
+        for (char c : code.toCharArray()) {
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\u2028':
+                case '\u2029':
+                    sb.append(String.format("\\u%04x", (int) c));
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    /**
+     * Returns the time to wait before going to the next slide. If settle detection is enabled,
+     * this is the maximum time to wait.
      * @return Time to wait, in milliseconds.
      */
     public int getPause() {
         return DEFAULT_PAUSE_MILLIS;
     }
 
+    /**
+     * Tells if adaptive settle detection is enabled. When enabled, a slide is captured as soon
+     * as {@link #isSettled()} returns true, and {@link #getPause()} is only used as an upper bound.
+     * It can be disabled from command line with <code>--settle=false</code>.
+     * @return true if the slide should be captured as soon as the page is settled
+     */
+    public boolean isSettleDetectionEnabled() {
+        Object settle = options == null ? null : options.get("settle");
+        return settle == null || Boolean.valueOf(settle.toString());
+    }
+
+    /**
+     * Returns the time during which the page must not change before it is considered settled.
+     * It can be overriden from command line with <code>--settleQuiet=150</code>.
+     * @return the quiet period, in milliseconds
+     */
+    public int getSettleQuietPeriod() {
+        Object quiet = options == null ? null : options.get("settleQuiet");
+        return quiet == null ? DEFAULT_SETTLE_QUIET_MILLIS : Integer.valueOf(quiet.toString());
+    }
+
+    /**
+     * Installs the javascript settle detector into the page. The detector watches DOM mutations,
+     * CSS transitions and animations, image loads and web fonts loading.
+     */
+    public void installSettleDetector() {
+        InputStream in = Profile.class.getResourceAsStream(SETTLE_DETECTOR_SCRIPT);
+        if (in == null) {
+            throw new RuntimeException("Cannot find settle detector script " + SETTLE_DETECTOR_SCRIPT);
+        }
+        StringBuilder sb = new StringBuilder();
+        try (Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+            char[] buffer = new char[4096];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                sb.append(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        engine.executeScript(sb.toString());
+    }
+
+    /**
+     * Tells if the current slide is ready to be captured: no pending DOM mutation, no running
+     * transition or animation, and no image or font still loading. Profiles can override this
+     * method if the slide deck provides a better way to tell that a slide is fully rendered.
+     * @return true if the slide can be captured
+     */
+    public boolean isSettled() {
+        Object settled = engine.executeScript(
+                "typeof deck2pdfSettled === 'function' ? deck2pdfSettled(" + getSettleQuietPeriod() + ") : true");
+        return Boolean.TRUE.equals(settled);
+    }
+
     /**
      * Called before the slides capture starts.
      */
@@ -83,6 +253,7 @@ public abstract class Profile {
     /**
      * Called before the export is closed, gives the profile chances to cleanup
      * extra resources or perform additional tasks before the pdf file gets closed.
+     * It is called from the JavaFX application thread, once every slide is written.
      */
     public void finish() {}
 
@@ -98,4 +269,40 @@ public abstract class Profile {
     public void ready(Runnable action) {
         action.run();
     }
+
+    /**
+     * The state of the current slide, as returned by {@link #step(int, boolean)}.
+     */
+    public static final class SlideState {
+        private final boolean last;
+        private final int slideCount;
+        private final int suggestedPause;
+
+        public SlideState(final boolean last, final int slideCount, final int suggestedPause) {
+            this.last = last;
+            this.slideCount = slideCount;
+            this.suggestedPause = suggestedPause;
+        }
+
+        /**
+         * @return true if the current slide is the last one
+         */
+        public boolean isLast() {
+            return last;
+        }
+
+        /**
+         * @return the number of slides, or -1 if unknown
+         */
+        public int getSlideCount() {
+            return slideCount;
+        }
+
+        /**
+         * @return the time to wait before capturing the slide, in milliseconds
+         */
+        public int getSuggestedPause() {
+            return suggestedPause;
+        }
+    }
 }
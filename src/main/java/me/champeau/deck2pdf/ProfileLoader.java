@@ -18,11 +18,11 @@ package me.champeau.deck2pdf;
 import javafx.scene.web.WebEngine;
 
 import java.io.BufferedInputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.util.Map;
 import java.util.Properties;
 
@@ -41,7 +41,7 @@ public class ProfileLoader {
         } else {
             resource = loader.getResourceAsStream(profile + ".groovy");
             if (resource!=null) {
-                result = loadProfileFromGroovy(resource, engine, options);
+                result = GroovyProfileLoader.loadBuiltInProfile(profile, resource, engine, options);
             }
         }
         try {
@@ -49,8 +49,7 @@ public class ProfileLoader {
                 resource = new BufferedInputStream(new FileInputStream(profile));
                 result = loadProfileFromPropertiesFile(resource, engine, options);
             } else if (profile.endsWith(".groovy")) {
-                resource = new BufferedInputStream(new FileInputStream(profile));
-                result = loadProfileFromGroovy(resource, engine, options);
+                result = GroovyProfileLoader.loadUserProfile(new File(profile), engine, options);
             }
         } catch (FileNotFoundException e) {
             result = null;
@@ -61,14 +60,6 @@ public class ProfileLoader {
         return result;
     }
 
-    private static GroovyProfile loadProfileFromGroovy(final InputStream resource, final WebEngine engine, final Map<String,?> options) {
-        return new GroovyProfile(
-              engine,
-              options,
-              new InputStreamReader(resource)
-        );
-    }
-
     private static Profile loadProfileFromPropertiesFile(final InputStream resource, final WebEngine engine, final Map<String,?> options) {
         Properties props = new Properties();
         try {
@@ -79,11 +70,19 @@ public class ProfileLoader {
         String totalSlides = findProperty(props, "totalSlides");
         String nextSlide = findProperty(props,"nextSlide");
         String pause = props.getProperty("pause");
+        String settled = props.getProperty("settled");
+        String gotoSlide = props.getProperty("gotoSlide");
 
         JSProfile result = new JSProfile(engine, options, totalSlides, nextSlide);
         if (pause!=null) {
             result.setPause(Integer.valueOf(pause));
         }
+        if (settled!=null) {
+            result.setSettledJS(settled);
+        }
+        if (gotoSlide!=null) {
+            result.setGotoSlideJS(gotoSlide);
+        }
         return result;
     }
 
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2003-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.champeau.deck2pdf;
+
+import groovy.lang.GroovySystem;
+import groovy.lang.Script;
+import me.champeau.deck2pdf.writer.CacheFiles;
+import org.codehaus.groovy.control.CompilationUnit;
+import org.codehaus.groovy.control.CompilerConfiguration;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+
+/**
+ * An on-disk cache of compiled Groovy profile scripts. Each script is compiled once, into a directory named
+ * after the hash of its content and of the Groovy version, so that editing a profile or upgrading Groovy
+ * compiles it again. Subsequent launches load the compiled classes instead of compiling the script.
+ * <p/>
+ * Compiled profiles are stored in <code>~/.deck2pdf/profiles</code>. The cache can be disabled with
+ * <code>--profileCache=false</code>.
+ *
+ * @author Cédric Champeau
+ */
+class ProfileScriptCache {
+    private static final String CLASS_NAME_PREFIX = "Deck2pdfProfile_";
+
+    private final File directory;
+
+    ProfileScriptCache(final File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Creates a cache from the command line options.
+     * @param options the command line options
+     * @return a cache, or null if caching compiled profiles is disabled
+     */
+    static ProfileScriptCache fromOptions(final Map<String, ?> options) {
+        Object enabled = options == null ? null : options.get("profileCache");
+        if (enabled != null && !Boolean.valueOf(enabled.toString())) {
+            return null;
+        }
+        return new ProfileScriptCache(CacheFiles.directory(null, "profiles"));
+    }
+
+    /**
+     * Returns the compiled class of a profile script, compiling it if it is not cached yet.
+     * @param source the source of the script
+     * @return the script class
+     * @throws IOException if the compiled classes cannot be written or loaded
+     */
+    Class<? extends Script> load(final String source) throws IOException {
+        String hash = hash(source);
+        String className = CLASS_NAME_PREFIX + hash.substring(0, 16);
+        File entry = new File(directory, hash);
+        if (!new File(entry, className + ".class").isFile()) {
+            compile(source, className, entry);
+        }
+        URLClassLoader loader = new URLClassLoader(new URL[]{entry.toURI().toURL()}, ProfileScriptCache.class.getClassLoader());
+        try {
+            return loader.loadClass(className).asSubclass(Script.class);
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Invalid compiled profile in " + entry, e);
+        }
+    }
+
+    private void compile(final String source, final String className, final File entry) throws IOException {
+        Files.createDirectories(directory.toPath());
+        // classes are compiled into a temporary directory which is then renamed, so that concurrent
+        // launches never see a partially written entry
+        File tmp = Files.createTempDirectory(directory.toPath(), "compile").toFile();
+        try {
+            CompilerConfiguration configuration = new CompilerConfiguration();
+            configuration.setTargetDirectory(tmp);
+            CompilationUnit unit = new CompilationUnit(configuration);
+            unit.addSource(className + ".groovy", source);
+            unit.compile();
+            try {
+                Files.move(tmp.toPath(), entry.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                if (!new File(entry, className + ".class").isFile()) {
+                    throw e;
+                }
+                // compiled by another launch in the meantime
+            }
+        } finally {
+            delete(tmp);
+        }
+    }
+
+    private static void delete(final File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static String hash(final String source) {
+        return CacheFiles.key(GroovySystem.getVersion(), source);
+    }
+}
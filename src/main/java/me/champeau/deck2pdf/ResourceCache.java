@@ -0,0 +1,611 @@
+/*
+ * Copyright 2003-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.champeau.deck2pdf;
+
+import me.champeau.deck2pdf.writer.CacheFiles;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.CacheRequest;
+import java.net.CacheResponse;
+import java.net.HttpURLConnection;
+import java.net.ResponseCache;
+import java.net.SecureCacheResponse;
+import java.net.URI;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.Principal;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A persistent cache of the resources of remote slide decks: pages, stylesheets, scripts, fonts and images
+ * fetched over HTTP(S) by the web view. It is installed as the default {@link ResponseCache}, so it is used by
+ * every HTTP connection opened by the web engine.
+ * <p/>
+ * Fresh entries, according to <code>Cache-Control: max-age</code> or <code>Expires</code>, are served from disk.
+ * Stale entries are revalidated with a conditional request, using <code>ETag</code> and
+ * <code>Last-Modified</code>, so that unchanged resources are not downloaded again. In offline mode, cached
+ * entries are always served without contacting the server: the first export mirrors the deck, and the next
+ * exports use the local copy.
+ * <p/>
+ * HTTPS connections only accept cached responses which carry the TLS session they were received with, so the
+ * cipher suite and the certificate chains are stored along with HTTPS entries, and served back with them.
+ * <p/>
+ * The cache is enabled from command line with <code>--resourceCache=true</code>, or <code>--resourceCache=offline</code>
+ * for the offline mode. Entries are stored in <code>~/.deck2pdf/resources</code>, unless <code>--resourceCacheDir</code>
+ * is set.
+ *
+ * @author Cédric Champeau
+ */
+class ResourceCache extends ResponseCache {
+    private static final String BODY_SUFFIX = ".body";
+    private static final String META_SUFFIX = ".meta";
+    private static final String TLS_SUFFIX = ".tls";
+    private static final Pattern MAX_AGE = Pattern.compile("max-age=(\\d+)");
+    private static final int TIMEOUT_MILLIS = 30000;
+
+    private final File directory;
+    private final boolean offline;
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger revalidated = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+    private final AtomicLong bytesSaved = new AtomicLong();
+
+    ResourceCache(final File directory, final boolean offline) {
+        this.directory = directory;
+        this.offline = offline;
+    }
+
+    /**
+     * Installs the resource cache as the default response cache, if enabled from command line.
+     * @param options the command line options
+     * @return the installed cache, or null if resource caching is disabled
+     */
+    static ResourceCache install(final Map<String, ?> options) {
+        Object mode = options.get("resourceCache");
+        Object dir = options.get("resourceCacheDir");
+        if (mode == null && dir == null || mode != null && "false".equals(mode.toString())) {
+            return null;
+        }
+        File directory = CacheFiles.directory(dir, "resources");
+        ResourceCache cache = new ResourceCache(directory, mode != null && "offline".equals(mode.toString()));
+        ResponseCache.setDefault(cache);
+        return cache;
+    }
+
+    /**
+     * Restores the response cache which was the default before a resource cache was installed, unless another
+     * cache has been installed since.
+     * @param cache the installed resource cache, or null if none was installed
+     * @param previous the previous default response cache, possibly null
+     */
+    static void uninstall(final ResourceCache cache, final ResponseCache previous) {
+        if (cache != null && ResponseCache.getDefault() == cache) {
+            ResponseCache.setDefault(previous);
+        }
+    }
+
+    /**
+     * Returns the resource cache, if installed.
+     */
+    static ResourceCache getInstalled() {
+        ResponseCache cache = ResponseCache.getDefault();
+        return cache instanceof ResourceCache ? (ResourceCache) cache : null;
+    }
+
+    @Override
+    public CacheResponse get(final URI uri, final String method, final Map<String, List<String>> requestHeaders) throws IOException {
+        if (!isCacheable(uri, method)) {
+            return null;
+        }
+        String key = key(uri);
+        Entry entry = read(key, isSecure(uri));
+        if (entry == null) {
+            misses.incrementAndGet();
+            // the connection fetches the resource, then calls put()
+            return null;
+        }
+        if (offline || entry.isFresh()) {
+            return hit(key, entry, false);
+        }
+        return revalidate(uri, key, entry, requestHeaders);
+    }
+
+    @Override
+    public CacheRequest put(final URI uri, final URLConnection connection) throws IOException {
+        if (!(connection instanceof HttpURLConnection) || !isCacheable(uri, ((HttpURLConnection) connection).getRequestMethod())) {
+            return null;
+        }
+        HttpURLConnection http = (HttpURLConnection) connection;
+        if (http.getResponseCode() != HttpURLConnection.HTTP_OK || isNoStore(http.getHeaderField("Cache-Control"))) {
+            return null;
+        }
+        Tls tls = null;
+        if (isSecure(uri)) {
+            tls = Tls.of(http);
+            if (tls == null) {
+                // without the TLS session, the entry could never be served
+                return null;
+            }
+        }
+        return store(key(uri), http.getHeaderFields(), tls);
+    }
+
+    private static boolean isCacheable(final URI uri, final String method) {
+        String scheme = uri.getScheme();
+        return "GET".equals(method) && ("http".equalsIgnoreCase(scheme) || "https".equalsIgnoreCase(scheme));
+    }
+
+    private static boolean isSecure(final URI uri) {
+        return "https".equalsIgnoreCase(uri.getScheme());
+    }
+
+    private static boolean isNoStore(final String cacheControl) {
+        return cacheControl != null && cacheControl.toLowerCase(Locale.ROOT).contains("no-store");
+    }
+
+    /**
+     * Returns a cached entry. The hit is only counted once the connection reads the body of the response.
+     */
+    private CacheResponse hit(final String key, final Entry entry, final boolean revalidation) throws IOException {
+        byte[] body = Files.readAllBytes(file(key, BODY_SUFFIX).toPath());
+        return response(entry.headers, body, entry.tls, () -> {
+            hits.incrementAndGet();
+            if (revalidation) {
+                revalidated.incrementAndGet();
+            }
+            bytesSaved.addAndGet(body.length);
+        });
+    }
+
+    private static CacheResponse response(final Map<String, List<String>> headers, final byte[] body, final Tls tls, final Runnable onServed) {
+        return tls == null ? new CachedResponse(headers, body, onServed) : new SecureCachedResponse(headers, body, tls, onServed);
+    }
+
+    /**
+     * Sends a conditional request for a stale entry. If the resource didn't change, the cached entry is served,
+     * otherwise the new version is stored and served.
+     */
+    private CacheResponse revalidate(final URI uri, final String key, final Entry entry, final Map<String, List<String>> requestHeaders) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) uri.toURL().openConnection();
+        // don't go through this cache again
+        connection.setUseCaches(false);
+        connection.setConnectTimeout(TIMEOUT_MILLIS);
+        connection.setReadTimeout(TIMEOUT_MILLIS);
+        for (Map.Entry<String, List<String>> header : requestHeaders.entrySet()) {
+            if (header.getKey() != null) {
+                for (String value : header.getValue()) {
+                    connection.addRequestProperty(header.getKey(), value);
+                }
+            }
+        }
+        String etag = entry.header("ETag");
+        String lastModified = entry.header("Last-Modified");
+        if (etag != null) {
+            connection.setRequestProperty("If-None-Match", etag);
+        }
+        if (lastModified != null) {
+            connection.setRequestProperty("If-Modified-Since", lastModified);
+        }
+        try {
+            int status = connection.getResponseCode();
+            Tls tls = isSecure(uri) ? Tls.of(connection) : null;
+            if (isSecure(uri) && tls == null) {
+                // the response could not be served to an HTTPS connection, which fetches the resource itself
+                return null;
+            }
+            if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                // the server may send updated freshness information
+                Map<String, List<String>> headers = new LinkedHashMap<>(entry.headers);
+                for (String name : new String[]{"Cache-Control", "Expires", "ETag", "Last-Modified", "Date"}) {
+                    String value = connection.getHeaderField(name);
+                    if (value != null) {
+                        headers.put(name, Collections.singletonList(value));
+                    }
+                }
+                writeMeta(key, headers);
+                if (tls != null) {
+                    writeTls(key, tls);
+                }
+                return hit(key, new Entry(headers, System.currentTimeMillis(), tls), true);
+            }
+            misses.incrementAndGet();
+            if (status != HttpURLConnection.HTTP_OK) {
+                // let the web engine handle errors and redirects
+                return null;
+            }
+            byte[] body = readFully(connection.getInputStream());
+            if (!isNoStore(connection.getHeaderField("Cache-Control"))) {
+                try (OutputStream out = store(key, connection.getHeaderFields(), tls).getBody()) {
+                    out.write(body);
+                }
+            }
+            return response(connection.getHeaderFields(), body, tls, () -> { });
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private StoreRequest store(final String key, final Map<String, List<String>> headers, final Tls tls) throws IOException {
+        Files.createDirectories(directory.toPath());
+        return new StoreRequest(key, headers, tls);
+    }
+
+    private Entry read(final String key, final boolean secure) {
+        File meta = file(key, META_SUFFIX);
+        if (!meta.isFile() || !file(key, BODY_SUFFIX).isFile()) {
+            return null;
+        }
+        Tls tls = null;
+        if (secure) {
+            tls = readTls(key);
+            if (tls == null) {
+                // entries stored without their TLS session are fetched again
+                return null;
+            }
+        }
+        try (BufferedReader reader = Files.newBufferedReader(meta.toPath(), StandardCharsets.UTF_8)) {
+            long stored = Long.valueOf(reader.readLine());
+            Map<String, List<String>> headers = new LinkedHashMap<>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int idx = line.indexOf(':');
+                // the status line is stored with an empty name, as it has a null key in header maps
+                String name = idx == 0 ? null : line.substring(0, idx);
+                headers.computeIfAbsent(name, k -> new ArrayList<>()).add(line.substring(idx + 1).trim());
+            }
+            return new Entry(headers, stored, tls);
+        } catch (IOException | RuntimeException e) {
+            // unreadable entries are fetched again
+            return null;
+        }
+    }
+
+    private void writeMeta(final String key, final Map<String, List<String>> headers) throws IOException {
+        File tmp = File.createTempFile("entry", ".tmp", directory);
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8))) {
+            out.println(System.currentTimeMillis());
+            for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+                for (String value : header.getValue()) {
+                    out.println((header.getKey() == null ? "" : header.getKey()) + ": " + value);
+                }
+            }
+        }
+        Files.move(tmp.toPath(), file(key, META_SUFFIX).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Writes the cipher suite, then the server and the local certificates, encoded in Base64.
+     */
+    private void writeTls(final String key, final Tls tls) throws IOException {
+        File tmp = File.createTempFile("entry", ".tmp", directory);
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8))) {
+            out.println(tls.cipherSuite);
+            for (Certificate certificate : tls.serverCertificates) {
+                out.println("server: " + Base64.getEncoder().encodeToString(certificate.getEncoded()));
+            }
+            for (Certificate certificate : tls.localCertificates) {
+                out.println("local: " + Base64.getEncoder().encodeToString(certificate.getEncoded()));
+            }
+        } catch (CertificateEncodingException e) {
+            tmp.delete();
+            throw new IOException(e);
+        }
+        Files.move(tmp.toPath(), file(key, TLS_SUFFIX).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private Tls readTls(final String key) {
+        File file = file(key, TLS_SUFFIX);
+        if (!file.isFile()) {
+            return null;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            CertificateFactory factory = CertificateFactory.getInstance("X.509");
+            String cipherSuite = reader.readLine();
+            List<Certificate> server = new ArrayList<>();
+            List<Certificate> local = new ArrayList<>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int idx = line.indexOf(':');
+                byte[] encoded = Base64.getDecoder().decode(line.substring(idx + 1).trim());
+                Certificate certificate = factory.generateCertificate(new ByteArrayInputStream(encoded));
+                ("server".equals(line.substring(0, idx)) ? server : local).add(certificate);
+            }
+            return cipherSuite == null || server.isEmpty() ? null : new Tls(cipherSuite, server, local);
+        } catch (IOException | CertificateException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private File file(final String key, final String suffix) {
+        return new File(directory, key + suffix);
+    }
+
+    private static String key(final URI uri) {
+        return CacheFiles.key(uri.toString());
+    }
+
+    private static byte[] readFully(final InputStream in) throws IOException {
+        try (InputStream stream = in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = stream.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    void printStatistics() {
+        int served = hits.get();
+        int total = served + misses.get();
+        System.out.printf("Resource cache: %d hit%s (%d revalidated), %d miss%s (%d%% hit ratio), %d KB saved%n",
+                served, served == 1 ? "" : "s", revalidated.get(),
+                misses.get(), misses.get() == 1 ? "" : "es",
+                total == 0 ? 0 : (100 * served) / total,
+                bytesSaved.get() / 1024);
+    }
+
+    private static class Entry {
+        private final Map<String, List<String>> headers;
+        private final long stored;
+        private final Tls tls;
+
+        private Entry(final Map<String, List<String>> headers, final long stored, final Tls tls) {
+            this.headers = headers;
+            this.stored = stored;
+            this.tls = tls;
+        }
+
+        private String header(final String name) {
+            for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+                if (name.equalsIgnoreCase(header.getKey()) && !header.getValue().isEmpty()) {
+                    return header.getValue().get(0);
+                }
+            }
+            return null;
+        }
+
+        private boolean isFresh() {
+            String cacheControl = header("Cache-Control");
+            if (cacheControl != null) {
+                String directives = cacheControl.toLowerCase(Locale.ROOT);
+                if (directives.contains("no-cache")) {
+                    return false;
+                }
+                Matcher matcher = MAX_AGE.matcher(directives);
+                if (matcher.find()) {
+                    return System.currentTimeMillis() - stored < TimeUnit.SECONDS.toMillis(Long.valueOf(matcher.group(1)));
+                }
+            }
+            String expires = header("Expires");
+            if (expires != null) {
+                try {
+                    return System.currentTimeMillis() < ZonedDateTime.parse(expires, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+                } catch (DateTimeParseException e) {
+                    return false;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * The TLS session of an HTTPS response: the negotiated cipher suite and the certificate chains.
+     */
+    private static class Tls {
+        private final String cipherSuite;
+        private final List<Certificate> serverCertificates;
+        private final List<Certificate> localCertificates;
+
+        private Tls(final String cipherSuite, final List<Certificate> serverCertificates, final List<Certificate> localCertificates) {
+            this.cipherSuite = cipherSuite;
+            this.serverCertificates = serverCertificates;
+            this.localCertificates = localCertificates;
+        }
+
+        /**
+         * Returns the TLS session of a connection, or null if it is not an established HTTPS connection.
+         */
+        private static Tls of(final URLConnection connection) {
+            if (!(connection instanceof HttpsURLConnection)) {
+                return null;
+            }
+            HttpsURLConnection https = (HttpsURLConnection) connection;
+            try {
+                Certificate[] local = https.getLocalCertificates();
+                return new Tls(https.getCipherSuite(), Arrays.asList(https.getServerCertificates()),
+                        local == null ? Collections.emptyList() : Arrays.asList(local));
+            } catch (SSLPeerUnverifiedException | IllegalStateException e) {
+                return null;
+            }
+        }
+
+        private static Principal principal(final List<Certificate> chain) {
+            if (chain.isEmpty() || !(chain.get(0) instanceof X509Certificate)) {
+                return null;
+            }
+            return ((X509Certificate) chain.get(0)).getSubjectX500Principal();
+        }
+    }
+
+    private static class CachedResponse extends CacheResponse {
+        private final Map<String, List<String>> headers;
+        private final byte[] body;
+        private final Runnable onServed;
+
+        private CachedResponse(final Map<String, List<String>> headers, final byte[] body, final Runnable onServed) {
+            this.headers = headers;
+            this.body = body;
+            this.onServed = onServed;
+        }
+
+        @Override
+        public Map<String, List<String>> getHeaders() {
+            return headers;
+        }
+
+        @Override
+        public InputStream getBody() {
+            onServed.run();
+            return new ByteArrayInputStream(body);
+        }
+    }
+
+    /**
+     * A cached response for an HTTPS connection, which requires the TLS session of the response.
+     */
+    private static class SecureCachedResponse extends SecureCacheResponse {
+        private final Map<String, List<String>> headers;
+        private final byte[] body;
+        private final Tls tls;
+        private final Runnable onServed;
+
+        private SecureCachedResponse(final Map<String, List<String>> headers, final byte[] body, final Tls tls, final Runnable onServed) {
+            this.headers = headers;
+            this.body = body;
+            this.tls = tls;
+            this.onServed = onServed;
+        }
+
+        @Override
+        public Map<String, List<String>> getHeaders() {
+            return headers;
+        }
+
+        @Override
+        public InputStream getBody() {
+            onServed.run();
+            return new ByteArrayInputStream(body);
+        }
+
+        @Override
+        public String getCipherSuite() {
+            return tls.cipherSuite;
+        }
+
+        @Override
+        public List<Certificate> getLocalCertificateChain() {
+            return tls.localCertificates.isEmpty() ? null : tls.localCertificates;
+        }
+
+        @Override
+        public List<Certificate> getServerCertificateChain() {
+            return tls.serverCertificates;
+        }
+
+        @Override
+        public Principal getPeerPrincipal() {
+            return Tls.principal(tls.serverCertificates);
+        }
+
+        @Override
+        public Principal getLocalPrincipal() {
+            return Tls.principal(tls.localCertificates);
+        }
+    }
+
+    /**
+     * Writes the body of a response to a temporary file, which replaces the cache entry once the body is complete.
+     */
+    private class StoreRequest extends CacheRequest {
+        private final String key;
+        private final Map<String, List<String>> headers;
+        private final Tls tls;
+        private final File tmp;
+        private final OutputStream body;
+        private boolean aborted;
+
+        private StoreRequest(final String key, final Map<String, List<String>> headers, final Tls tls) throws IOException {
+            this.key = key;
+            this.headers = headers;
+            this.tls = tls;
+            this.tmp = File.createTempFile("body", ".tmp", directory);
+            this.body = new FilterOutputStream(new FileOutputStream(tmp)) {
+                @Override
+                public void write(final byte[] b, final int off, final int len) throws IOException {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    commit();
+                }
+            };
+        }
+
+        @Override
+        public OutputStream getBody() {
+            return body;
+        }
+
+        @Override
+        public synchronized void abort() {
+            aborted = true;
+            try {
+                body.close();
+            } catch (IOException e) {
+                // the entry is discarded anyway
+            }
+            tmp.delete();
+        }
+
+        private synchronized void commit() throws IOException {
+            if (aborted || !tmp.exists()) {
+                return;
+            }
+            if (tls != null) {
+                writeTls(key, tls);
+            }
+            Files.move(tmp.toPath(), file(key, BODY_SUFFIX).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            writeMeta(key, headers);
+        }
+    }
+}
@@ -0,0 +1,404 @@
+/*
+ * Copyright 2003-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.champeau.deck2pdf;
+
+import me.champeau.deck2pdf.writer.SlideExportException;
+import me.champeau.deck2pdf.writer.SlideMetrics;
+import me.champeau.deck2pdf.writer.SlideStrips;
+import me.champeau.deck2pdf.writer.SlideWriter;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * A bounded producer/consumer pipeline between slide capture and slide writing. Captured frames
+ * are queued by the JavaFX application thread, which can immediately move to the next slide, while
+ * a dedicated writer thread converts and encodes them, in sequence order.
+ * <p/>
+ * The queue is bounded both by a number of frames and by an amount of memory. Producers never block:
+ * they ask the pipeline to call them back once a frame can be accepted, so that the JavaFX application
+ * thread is never frozen. The frame the writer is waiting for is always accepted, which guarantees
+ * progress even if frames are produced out of order.
+ * <p/>
+ * Frames are passed as raw pixel buffers which are recycled once the writer no longer uses them, so that
+ * capturing a slide doesn't allocate a new full-frame buffer each time, and writers encoding slides in the
+ * background don't have to copy them. Very large slides can be submitted as several strips, which are queued
+ * and written individually, so that the whole slide is never in memory.
+ *
+ * @author Cédric Champeau
+ */
+final class SlidePipeline {
+    static final int DEFAULT_QUEUE_DEPTH = 4;
+    static final int DEFAULT_QUEUE_MEMORY_MB = 512;
+
+    private final SlideWriter writer;
+    private final int queueDepth;
+    private final long memoryBudget;
+    private final Executor callbackExecutor;
+    private final CompletableFuture<Void> completion = new CompletableFuture<>();
+
+    // guarded by this
+    // frames and strips, ordered by sequence then strip number
+    private final TreeMap<Long, QueuedSlide> queue = new TreeMap<>();
+    private final List<Waiter> waiters = new ArrayList<>();
+    private final Deque<int[]> freeFrames = new ArrayDeque<>();
+    private int nextSequence;
+    private int nextStrip;
+    private SlideStrips currentStrips;
+    private long queuedBytes;
+    private long lastFrameBytes;
+    private boolean closed;
+    private Runnable beforeClose;
+    private SlideExportException failure;
+
+    /**
+     * Creates a pipeline and starts its writer thread.
+     * @param writer the writer which will receive slides, in sequence order
+     * @param queueDepth the maximum number of frames waiting to be written
+     * @param memoryBudget the maximum amount of memory, in bytes, used by frames waiting to be written
+     * @param callbackExecutor the executor used to call back producers waiting for the queue to have capacity
+     */
+    SlidePipeline(final SlideWriter writer, final int queueDepth, final long memoryBudget, final Executor callbackExecutor) {
+        this.writer = writer;
+        this.queueDepth = Math.max(1, queueDepth);
+        this.memoryBudget = memoryBudget;
+        this.callbackExecutor = callbackExecutor;
+        Thread writerThread = new Thread(this::drain, "deck2pdf-slide-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Runs the action once a frame with the given sequence number can be queued. If the queue
+     * has capacity, the action is executed immediately, in the calling thread. Otherwise, it is
+     * executed using the callback executor as soon as capacity is available.
+     * @param sequence the sequence number of the frame, starting from 0
+     * @param action the action which will capture and submit the frame
+     */
+    void whenAccepting(final int sequence, final Runnable action) {
+        whenAccepting(sequence, 0, action);
+    }
+
+    /**
+     * Runs the action once a strip of a frame can be queued.
+     * @param sequence the sequence number of the frame, starting from 0
+     * @param strip the number of the strip in the frame, starting from 0
+     * @param action the action which will capture and submit the strip
+     */
+    void whenAccepting(final int sequence, final int strip, final Runnable action) {
+        synchronized (this) {
+            if (!canAccept(key(sequence, strip))) {
+                waiters.add(new Waiter(key(sequence, strip), action));
+                return;
+            }
+        }
+        action.run();
+    }
+
+    /**
+     * Returns a pixel buffer which can be used to capture a frame, recycling the buffer of a frame
+     * which has already been written if possible.
+     * @param size the number of pixels of the frame
+     * @return a pixel buffer of the requested size
+     */
+    synchronized int[] acquireFrame(final int size) {
+        int[] frame = freeFrames.poll();
+        return frame != null && frame.length == size ? frame : new int[size];
+    }
+
+    /**
+     * Queues a captured frame. The pixel buffer must not be used by the caller after this call.
+     * @param sequence the sequence number of the frame, starting from 0. Frames are written in this order.
+     * @param current the slide number, as passed to the writer
+     * @param numSlides the total number of slides, or -1 if unknown
+     * @param pixels the captured frame, as ARGB pixels, obtained with {@link #acquireFrame(int)}
+     * @param width the width of the frame
+     * @param height the height of the frame
+     * @param onWritten an action called from the writer thread once the slide has been written
+     * @throws SlideExportException if writing a previous slide failed
+     */
+    synchronized void submit(final int sequence, final int current, final int numSlides, final int[] pixels, final int width, final int height, final Runnable onWritten) throws SlideExportException {
+        queue(key(sequence, 0), new QueuedSlide(current, numSlides, pixels, width, height, -1, onWritten));
+    }
+
+    /**
+     * Queues a strip of a captured frame. Strips are written in order, and the frame is complete once its last
+     * strip is written. The pixel buffer must not be used by the caller after this call.
+     * @param sequence the sequence number of the frame, starting from 0
+     * @param strip the number of the strip, starting from 0
+     * @param last true if this is the last strip of the frame
+     * @param current the slide number, as passed to the writer
+     * @param numSlides the total number of slides, or -1 if unknown
+     * @param pixels the rows of the strip, as ARGB pixels, obtained with {@link #acquireFrame(int)}
+     * @param width the width of the frame
+     * @param height the height of the frame
+     * @param onWritten an action called from the writer thread once the frame has been written, used for the last strip only
+     * @throws SlideExportException if writing a previous slide failed
+     */
+    synchronized void submitStrip(final int sequence, final int strip, final boolean last, final int current, final int numSlides,
+                                  final int[] pixels, final int width, final int height, final Runnable onWritten) throws SlideExportException {
+        queue(key(sequence, strip), new QueuedSlide(current, numSlides, pixels, width, height, last ? 1 : 0, onWritten));
+    }
+
+    private void queue(final long key, final QueuedSlide slide) throws SlideExportException {
+        if (failure != null) {
+            throw failure;
+        }
+        if (closed) {
+            throw new SlideExportException(new IllegalStateException("Slide pipeline is already closed"));
+        }
+        queue.put(key, slide);
+        queuedBytes += slide.bytes;
+        lastFrameBytes = slide.bytes;
+        notifyAll();
+    }
+
+    /**
+     * Returns the metrics of the export, which slide producers use to record the time spent capturing slides.
+     */
+    SlideMetrics getMetrics() {
+        return writer.getMetrics();
+    }
+
+    /**
+     * Closes the pipeline. No frame can be submitted after this method is called.
+     * @return a future which completes once every queued frame is written and the writer is closed. If
+     * writing failed, the future completes exceptionally with a {@link SlideExportException}.
+     */
+    synchronized CompletableFuture<Void> close() {
+        closed = true;
+        notifyAll();
+        return completion;
+    }
+
+    /**
+     * Closes the pipeline, running an action from the writer thread once every queued frame is written, and before
+     * the writer is closed. This lets profiles add content to the document after the last slide, without racing
+     * with the writer.
+     * @param beforeClose the action, which fails the export if it throws an exception
+     * @return a future which completes once the action has run and the writer is closed
+     */
+    synchronized CompletableFuture<Void> close(final Runnable beforeClose) {
+        this.beforeClose = beforeClose;
+        return close();
+    }
+
+    /**
+     * Aborts the pipeline. Queued frames are dropped, producers fail when they submit their next frame, and the
+     * writer is closed from the writer thread, once the frame being written, if any, is done.
+     * @param e the reason, with which the pipeline completes exceptionally
+     */
+    synchronized void abort(final SlideExportException e) {
+        if (failure != null || completion.isDone()) {
+            return;
+        }
+        failure = e;
+        closed = true;
+        queue.clear();
+        queuedBytes = 0;
+        releaseWaiters();
+        notifyAll();
+    }
+
+    private static long key(final int sequence, final int strip) {
+        return ((long) sequence << 32) | strip;
+    }
+
+    private boolean canAccept(final long key) {
+        if (failure != null || key == key(nextSequence, nextStrip)) {
+            return true;
+        }
+        return queue.size() < queueDepth && queuedBytes + lastFrameBytes <= memoryBudget;
+    }
+
+    private void releaseWaiters() {
+        for (Iterator<Waiter> it = waiters.iterator(); it.hasNext(); ) {
+            Waiter waiter = it.next();
+            if (canAccept(waiter.key)) {
+                it.remove();
+                callbackExecutor.execute(waiter.action);
+            }
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            QueuedSlide slide;
+            long key;
+            SlideExportException aborted;
+            synchronized (this) {
+                key = key(nextSequence, nextStrip);
+                while (failure == null && !queue.containsKey(key) && !(closed && queue.isEmpty())) {
+                    if (closed) {
+                        fail(new SlideExportException(new IllegalStateException("Missing slide in sequence " + nextSequence)));
+                        return;
+                    }
+                    waitForChange();
+                }
+                aborted = failure;
+                if (aborted == null && closed && queue.isEmpty()) {
+                    break;
+                }
+                slide = queue.get(key);
+            }
+            if (aborted != null) {
+                try {
+                    writer.close();
+                } catch (SlideExportException | RuntimeException ignored) {
+                    // the export is aborted anyway
+                }
+                completion.completeExceptionally(aborted);
+                return;
+            }
+            boolean frameDone = true;
+            try {
+                if (slide.strip < 0) {
+                    // writers encoding slides asynchronously release the buffer once encoded, instead of copying it
+                    final int[] pixels = slide.pixels;
+                    writer.writeSlide(pixels, slide.width, slide.height, slide.numSlides, slide.current, () -> recycle(pixels));
+                } else {
+                    if (currentStrips == null) {
+                        currentStrips = writer.beginSlide(slide.width, slide.height, slide.numSlides, slide.current);
+                    }
+                    currentStrips.writeStrip(slide.pixels, slide.pixels.length / slide.width);
+                    frameDone = slide.strip > 0;
+                    if (frameDone) {
+                        currentStrips.finish();
+                        currentStrips = null;
+                    }
+                }
+            } catch (SlideExportException e) {
+                fail(e);
+                return;
+            } catch (RuntimeException e) {
+                fail(new SlideExportException(e));
+                return;
+            }
+            if (frameDone) {
+                slide.onWritten.run();
+            }
+            synchronized (this) {
+                queue.remove(key);
+                queuedBytes -= slide.bytes;
+                if (frameDone) {
+                    nextSequence++;
+                    nextStrip = 0;
+                } else {
+                    nextStrip++;
+                }
+                if (slide.strip >= 0) {
+                    // strips are consumed as they are written
+                    recycle(slide.pixels);
+                }
+                releaseWaiters();
+            }
+        }
+        Runnable action;
+        synchronized (this) {
+            action = beforeClose;
+        }
+        if (action != null) {
+            try {
+                action.run();
+            } catch (RuntimeException e) {
+                fail(new SlideExportException(e));
+                return;
+            }
+        }
+        try {
+            writer.close();
+        } catch (SlideExportException e) {
+            completion.completeExceptionally(e);
+            return;
+        } catch (RuntimeException e) {
+            completion.completeExceptionally(new SlideExportException(e));
+            return;
+        }
+        completion.complete(null);
+    }
+
+    /**
+     * Makes a pixel buffer available to capture other frames, once the writer no longer uses it.
+     */
+    private synchronized void recycle(final int[] pixels) {
+        if (freeFrames.size() <= queueDepth) {
+            freeFrames.push(pixels);
+        }
+    }
+
+    private void waitForChange() {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void fail(final SlideExportException e) {
+        synchronized (this) {
+            failure = e;
+            queue.clear();
+            queuedBytes = 0;
+            releaseWaiters();
+        }
+        try {
+            writer.close();
+        } catch (SlideExportException | RuntimeException ignored) {
+            // the original failure is more relevant
+        }
+        completion.completeExceptionally(e);
+    }
+
+    private static class QueuedSlide {
+        private final int current;
+        private final int numSlides;
+        private final int[] pixels;
+        private final int width;
+        private final int height;
+        // -1 for a whole frame, 0 for a strip, 1 for the last strip of a frame
+        private final int strip;
+        private final Runnable onWritten;
+        private final long bytes;
+
+        private QueuedSlide(final int current, final int numSlides, final int[] pixels, final int width, final int height, final int strip, final Runnable onWritten) {
+            this.current = current;
+            this.numSlides = numSlides;
+            this.pixels = pixels;
+            this.width = width;
+            this.height = height;
+            this.strip = strip;
+            this.onWritten = onWritten;
+            this.bytes = 4L * pixels.length;
+        }
+    }
+
+    private static class Waiter {
+        private final long key;
+        private final Runnable action;
+
+        private Waiter(final long key, final Runnable action) {
+            this.key = key;
+            this.action = action;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2003-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.champeau.deck2pdf;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The slides to export, as set with the <code>slides</code> command line option, for example
+ * <code>--slides=120-125,130</code>. Ranges may be open, like <code>120-</code>, to export every slide
+ * starting from slide 120. Slide numbers start from 1, and overlapping ranges are merged.
+ *
+ * @author Cédric Champeau
+ */
+final class SlideSelection {
+    private static final SlideSelection ALL = new SlideSelection(new int[][]{{1, -1}});
+
+    // sorted, non overlapping ranges. The last slide of the last range is -1 if the range is open
+    private final int[][] ranges;
+
+    private SlideSelection(final int[][] ranges) {
+        this.ranges = ranges;
+    }
+
+    /**
+     * Parses a selection.
+     * @param spec comma separated slide numbers and ranges, or null to select every slide
+     * @return the selection
+     * @throws IllegalArgumentException if the selection is invalid
+     */
+    static SlideSelection parse(final String spec) {
+        if (spec == null || spec.trim().isEmpty()) {
+            return ALL;
+        }
+        List<int[]> parsed = new ArrayList<>();
+        for (String part : spec.split(",")) {
+            String range = part.trim();
+            int dash = range.indexOf('-');
+            int first;
+            int last;
+            try {
+                if (dash < 0) {
+                    first = last = Integer.parseInt(range);
+                } else {
+                    first = Integer.parseInt(range.substring(0, dash).trim());
+                    String end = range.substring(dash + 1).trim();
+                    last = end.isEmpty() ? -1 : Integer.parseInt(end);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid slide range '" + range + "' in '" + spec + "'");
+            }
+            if (first < 1 || last != -1 && last < first) {
+                throw new IllegalArgumentException("Invalid slide range '" + range + "' in '" + spec + "'");
+            }
+            parsed.add(new int[]{first, last});
+        }
+        parsed.sort(Comparator.comparingInt(range -> range[0]));
+        List<int[]> merged = new ArrayList<>();
+        for (int[] range : parsed) {
+            int[] previous = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (previous == null || previous[1] != -1 && range[0] > previous[1] + 1) {
+                merged.add(range);
+            } else if (previous[1] != -1) {
+                previous[1] = range[1] == -1 ? -1 : Math.max(previous[1], range[1]);
+            }
+        }
+        return new SlideSelection(merged.toArray(new int[merged.size()][]));
+    }
+
+    /**
+     * Tells if every slide of the deck is selected.
+     */
+    boolean isAll() {
+        return ranges.length == 1 && ranges[0][0] == 1 && ranges[0][1] == -1;
+    }
+
+    /**
+     * Returns the first selected slide.
+     */
+    int first() {
+        return ranges[0][0];
+    }
+
+    /**
+     * Returns the last selected slide, or -1 if the selection runs until the end of the deck.
+     */
+    int last() {
+        return ranges[ranges.length - 1][1];
+    }
+
+    /**
+     * Returns the first selected slide after the given one.
+     * @param slide a slide number
+     * @return the next selected slide, or -1 if there are no more selected slides
+     */
+    int next(final int slide) {
+        for (int[] range : ranges) {
+            if (range[1] == -1 || slide < range[1]) {
+                return Math.max(slide + 1, range[0]);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the position of a selected slide in the export, which is the number of selected slides before it.
+     * @param slide a selected slide number
+     * @return the position of the slide, starting from 0
+     */
+    int sequence(final int slide) {
+        int sequence = 0;
+        for (int[] range : ranges) {
+            if (range[1] != -1 && range[1] < slide) {
+                sequence += range[1] - range[0] + 1;
+            } else {
+                return sequence + slide - range[0];
+            }
+        }
+        return sequence;
+    }
+
+    /**
+     * Returns the selected slides of a deck.
+     * @param numSlides the number of slides of the deck
+     * @return the selected slide numbers, in order
+     */
+    int[] toArray(final int numSlides) {
+        List<Integer> slides = new ArrayList<>();
+        for (int slide = first(); slide != -1 && slide <= numSlides; slide = next(slide)) {
+            slides.add(slide);
+        }
+        int[] result = new int[slides.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = slides.get(i);
+        }
+        return result;
+    }
+}
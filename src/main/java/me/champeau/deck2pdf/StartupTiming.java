@@ -0,0 +1,66 @@
+/*
+ * Copyright 2003-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.champeau.deck2pdf;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records the time elapsed since the JVM started, and the number of loaded classes, at the main steps of
+ * the startup of an export. It is enabled from command line with <code>--startup-timing</code>, and does
+ * nothing otherwise.
+ *
+ * @author Cédric Champeau
+ */
+final class StartupTiming {
+    private static final List<String> MARKS = new ArrayList<>();
+    private static volatile boolean enabled;
+
+    private StartupTiming() {
+    }
+
+    static void enable() {
+        enabled = true;
+    }
+
+    /**
+     * Records a step of the startup.
+     * @param step the name of the step
+     */
+    static void mark(final String step) {
+        if (!enabled) {
+            return;
+        }
+        long uptime = ManagementFactory.getRuntimeMXBean().getUptime();
+        int classes = ManagementFactory.getClassLoadingMXBean().getLoadedClassCount();
+        synchronized (MARKS) {
+            MARKS.add(String.format("%6d ms %6d classes  %s", uptime, classes, step));
+        }
+    }
+
+    static void print() {
+        if (!enabled) {
+            return;
+        }
+        System.out.println("Startup timing (since JVM start):");
+        synchronized (MARKS) {
+            for (String mark : MARKS) {
+                System.out.println("  " + mark);
+            }
+        }
+    }
+}
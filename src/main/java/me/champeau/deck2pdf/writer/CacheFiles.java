@@ -0,0 +1,76 @@
+/*
+ * Copyright 2003-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.champeau.deck2pdf.writer;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Helpers shared by the caches of deck2pdf: the location of their directories, and the keys of their entries.
+ *
+ * @author Cédric Champeau
+ */
+public final class CacheFiles {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private CacheFiles() {
+    }
+
+    /**
+     * Returns the directory of a cache.
+     * @param dir the directory set from command line, or null
+     * @param name the name of the default directory, in <code>~/.deck2pdf</code>
+     * @return the directory of the cache
+     */
+    public static File directory(final Object dir, final String name) {
+        return dir != null ? new File(dir.toString()) : new File(System.getProperty("user.home"), ".deck2pdf/" + name);
+    }
+
+    /**
+     * Computes the key of a cache entry, as the hexadecimal SHA-256 digest of its parts.
+     * @param parts the parts identifying the entry, encoded in UTF-8 and separated by a zero byte
+     * @return the key
+     */
+    public static String key(final String... parts) {
+        MessageDigest md = sha256();
+        for (int i = 0; i < parts.length; i++) {
+            if (i > 0) {
+                md.update((byte) 0);
+            }
+            md.update(parts[i].getBytes(StandardCharsets.UTF_8));
+        }
+        return hex(md.digest());
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String hex(final byte[] digest) {
+        char[] hex = new char[2 * digest.length];
+        for (int i = 0; i < digest.length; i++) {
+            hex[2 * i] = HEX[(digest[i] >> 4) & 0xF];
+            hex[2 * i + 1] = HEX[digest[i] & 0xF];
+        }
+        return new String(hex);
+    }
+}
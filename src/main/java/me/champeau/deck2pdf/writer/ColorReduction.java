@@ -0,0 +1,423 @@
+/*
+ * Copyright 2003-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.champeau.deck2pdf.writer;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.DoubleAdder;
+
+/**
+ * Reduces the colours of slides, so that they can be written as indexed images, with a palette of at most 256
+ * colours, instead of 24-bit RGB images. Most slides are flat layouts using a few colours, so indexed images are
+ * typically several times smaller, and faster to compress.
+ * <p/>
+ * In <code>exact</code> mode, only slides which use at most <code>paletteColors</code> colours are indexed, without
+ * any loss. In <code>quantize</code> mode, the colours of other slides are reduced with the median cut algorithm,
+ * without dithering, which would prevent flat areas from compressing well. The quantization error of each slide is
+ * measured, and reported as a PSNR.
+ * <p/>
+ * Colour reduction is enabled from command line with <code>--palette=exact</code> or <code>--palette=quantize</code>.
+ *
+ * @author Cédric Champeau
+ */
+public class ColorReduction {
+    public static final int MAX_COLORS = 256;
+
+    private static final int HISTOGRAM_BITS = 5;
+    private static final int HISTOGRAM_SIZE = 1 << (3 * HISTOGRAM_BITS);
+
+    public enum Mode {
+        exact,
+        quantize
+    }
+
+    private final Mode mode;
+    private final int maxColors;
+    private final AtomicInteger exact = new AtomicInteger();
+    private final AtomicInteger quantized = new AtomicInteger();
+    private final AtomicInteger unchanged = new AtomicInteger();
+    private final DoubleAdder psnr = new DoubleAdder();
+
+    public ColorReduction(final Mode mode, final int maxColors) {
+        this.mode = mode;
+        this.maxColors = Math.max(2, Math.min(MAX_COLORS, maxColors));
+    }
+
+    /**
+     * Creates the colour reduction from the command line options.
+     * @param options the command line options
+     * @return the colour reduction, or null if colours are not reduced
+     * @throws SlideExportException if the options are invalid
+     */
+    public static ColorReduction fromOptions(final Map<String, ?> options) throws SlideExportException {
+        Object palette = options.get("palette");
+        if (palette == null || "false".equals(palette.toString())) {
+            return null;
+        }
+        Object colors = options.get("paletteColors");
+        try {
+            Mode mode = "true".equals(palette.toString()) ? Mode.exact : Mode.valueOf(palette.toString());
+            return new ColorReduction(mode, colors == null ? MAX_COLORS : Integer.valueOf(colors.toString()));
+        } catch (IllegalArgumentException e) {
+            throw new SlideExportException(e);
+        }
+    }
+
+    /**
+     * Returns a description of the settings of the colour reduction, which determine the encoded bytes.
+     */
+    public String getSettings() {
+        return "palette:" + mode + ":" + maxColors;
+    }
+
+    /**
+     * Reduces the colours of an image. This method may be called concurrently.
+     * @param image the image
+     * @return the indexed image, or null if the image uses too many colours and colours are not quantized
+     */
+    public IndexedImage reduce(final BufferedImage image) {
+        IndexedImage indexed = index(image);
+        if (indexed != null) {
+            exact.incrementAndGet();
+            return indexed;
+        }
+        if (mode == Mode.exact) {
+            unchanged.incrementAndGet();
+            return null;
+        }
+        indexed = quantize(image);
+        quantized.incrementAndGet();
+        psnr.add(indexed.getPsnr());
+        return indexed;
+    }
+
+    /**
+     * Indexes the colours of an image, as long as there are no more than {@link #maxColors} of them.
+     */
+    private IndexedImage index(final BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        // open addressing hash table of the colours, marked with an extra bit so that black is not an empty slot
+        int[] keys = new int[4 * MAX_COLORS];
+        byte[] values = new byte[keys.length];
+        int mask = keys.length - 1;
+        int[] palette = new int[maxColors];
+        int colors = 0;
+        byte[] indices = new byte[width * height];
+        int[] row = new int[width];
+        int last = -1;
+        byte lastIndex = 0;
+        for (int y = 0, i = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            for (int x = 0; x < width; x++, i++) {
+                int rgb = row[x] & 0xFFFFFF;
+                if (rgb != last) {
+                    int key = rgb | 0x1000000;
+                    int slot = (rgb * 0x9E3779B1) >>> 22 & mask;
+                    while (keys[slot] != 0 && keys[slot] != key) {
+                        slot = (slot + 1) & mask;
+                    }
+                    if (keys[slot] == 0) {
+                        if (colors == maxColors) {
+                            return null;
+                        }
+                        keys[slot] = key;
+                        values[slot] = (byte) colors;
+                        palette[colors++] = rgb;
+                    }
+                    last = rgb;
+                    lastIndex = values[slot];
+                }
+                indices[i] = lastIndex;
+            }
+        }
+        int[] result = new int[colors];
+        System.arraycopy(palette, 0, result, 0, colors);
+        return new IndexedImage(width, height, result, indices, 0);
+    }
+
+    /**
+     * Quantizes the colours of an image with the median cut algorithm, working on a histogram of the colours
+     * with 5 bits per channel. Each colour of the palette is the average of the pixels of its box.
+     */
+    private IndexedImage quantize(final BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] counts = new int[HISTOGRAM_SIZE];
+        long[] sums = new long[3 * HISTOGRAM_SIZE];
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            for (int x = 0; x < width; x++) {
+                int rgb = row[x];
+                int bin = bin(rgb);
+                counts[bin]++;
+                sums[3 * bin] += (rgb >> 16) & 0xFF;
+                sums[3 * bin + 1] += (rgb >> 8) & 0xFF;
+                sums[3 * bin + 2] += rgb & 0xFF;
+            }
+        }
+        List<Box> boxes = new ArrayList<>();
+        boxes.add(new Box(0, 31, 0, 31, 0, 31).shrink(counts));
+        while (boxes.size() < maxColors) {
+            Box largest = null;
+            for (Box box : boxes) {
+                if (box.isSplittable() && (largest == null || box.count > largest.count)) {
+                    largest = box;
+                }
+            }
+            if (largest == null) {
+                break;
+            }
+            boxes.add(largest.split(counts));
+        }
+        int[] palette = new int[boxes.size()];
+        int[] lookup = new int[HISTOGRAM_SIZE];
+        for (int i = 0; i < palette.length; i++) {
+            palette[i] = boxes.get(i).average(counts, sums, lookup, i);
+        }
+        byte[] indices = new byte[width * height];
+        double error = 0;
+        for (int y = 0, i = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            for (int x = 0; x < width; x++, i++) {
+                int rgb = row[x];
+                int index = lookup[bin(rgb)];
+                int color = palette[index];
+                int dr = ((rgb >> 16) & 0xFF) - ((color >> 16) & 0xFF);
+                int dg = ((rgb >> 8) & 0xFF) - ((color >> 8) & 0xFF);
+                int db = (rgb & 0xFF) - (color & 0xFF);
+                error += dr * dr + dg * dg + db * db;
+                indices[i] = (byte) index;
+            }
+        }
+        return new IndexedImage(width, height, palette, indices, error / (3.0 * width * height));
+    }
+
+    private static int bin(final int rgb) {
+        return (((rgb >> 19) & 0x1F) << 10) | (((rgb >> 11) & 0x1F) << 5) | ((rgb >> 3) & 0x1F);
+    }
+
+    public void printStatistics() {
+        int quantizedSlides = quantized.get();
+        if (exact.get() + quantizedSlides + unchanged.get() == 0) {
+            // the writer doesn't support indexed images
+            return;
+        }
+        System.out.printf(Locale.ROOT, "Palette: %d slide%s indexed, %d quantized%s, %d kept in RGB%n",
+                exact.get(), exact.get() == 1 ? "" : "s",
+                quantizedSlides, quantizedSlides == 0 ? "" : String.format(Locale.ROOT, " (average PSNR %.1f dB)", psnr.sum() / quantizedSlides),
+                unchanged.get());
+    }
+
+    /**
+     * A box of the colour histogram, in 5 bits per channel coordinates.
+     */
+    private static class Box {
+        private final int[] min = new int[3];
+        private final int[] max = new int[3];
+        private long count;
+
+        private Box(final int r0, final int r1, final int g0, final int g1, final int b0, final int b1) {
+            min[0] = r0;
+            max[0] = r1;
+            min[1] = g0;
+            max[1] = g1;
+            min[2] = b0;
+            max[2] = b1;
+        }
+
+        private boolean isSplittable() {
+            return count > 1 && (max[0] > min[0] || max[1] > min[1] || max[2] > min[2]);
+        }
+
+        /**
+         * Shrinks the box to the bins which are actually used, and counts its pixels.
+         */
+        private Box shrink(final int[] counts) {
+            int[] lo = {31, 31, 31};
+            int[] hi = {0, 0, 0};
+            count = 0;
+            for (int r = min[0]; r <= max[0]; r++) {
+                for (int g = min[1]; g <= max[1]; g++) {
+                    for (int b = min[2]; b <= max[2]; b++) {
+                        int c = counts[(r << 10) | (g << 5) | b];
+                        if (c > 0) {
+                            count += c;
+                            lo[0] = Math.min(lo[0], r);
+                            hi[0] = Math.max(hi[0], r);
+                            lo[1] = Math.min(lo[1], g);
+                            hi[1] = Math.max(hi[1], g);
+                            lo[2] = Math.min(lo[2], b);
+                            hi[2] = Math.max(hi[2], b);
+                        }
+                    }
+                }
+            }
+            if (count > 0) {
+                System.arraycopy(lo, 0, min, 0, 3);
+                System.arraycopy(hi, 0, max, 0, 3);
+            }
+            return this;
+        }
+
+        /**
+         * Splits the box along its longest axis, at the median pixel.
+         * @return the upper half, while this box becomes the lower half
+         */
+        private Box split(final int[] counts) {
+            int axis = 0;
+            for (int i = 1; i < 3; i++) {
+                if (max[i] - min[i] > max[axis] - min[axis]) {
+                    axis = i;
+                }
+            }
+            long[] planes = new long[32];
+            for (int r = min[0]; r <= max[0]; r++) {
+                for (int g = min[1]; g <= max[1]; g++) {
+                    for (int b = min[2]; b <= max[2]; b++) {
+                        planes[axis == 0 ? r : axis == 1 ? g : b] += counts[(r << 10) | (g << 5) | b];
+                    }
+                }
+            }
+            int cut = min[axis];
+            long below = planes[cut];
+            while (cut + 1 < max[axis] && below < count / 2) {
+                below += planes[++cut];
+            }
+            Box upper = new Box(min[0], max[0], min[1], max[1], min[2], max[2]);
+            upper.min[axis] = cut + 1;
+            max[axis] = cut;
+            shrink(counts);
+            return upper.shrink(counts);
+        }
+
+        /**
+         * Computes the average colour of the pixels of the box, and maps its bins to the given palette index.
+         */
+        private int average(final int[] counts, final long[] sums, final int[] lookup, final int index) {
+            long r = 0;
+            long g = 0;
+            long b = 0;
+            long total = 0;
+            for (int x = min[0]; x <= max[0]; x++) {
+                for (int y = min[1]; y <= max[1]; y++) {
+                    for (int z = min[2]; z <= max[2]; z++) {
+                        int bin = (x << 10) | (y << 5) | z;
+                        lookup[bin] = index;
+                        total += counts[bin];
+                        r += sums[3 * bin];
+                        g += sums[3 * bin + 1];
+                        b += sums[3 * bin + 2];
+                    }
+                }
+            }
+            if (total == 0) {
+                return 0;
+            }
+            return (int) (r / total) << 16 | (int) (g / total) << 8 | (int) (b / total);
+        }
+    }
+
+    /**
+     * An image made of indices into a palette of at most 256 colours.
+     */
+    public static class IndexedImage {
+        private final int width;
+        private final int height;
+        private final int[] palette;
+        private final byte[] indices;
+        private final double meanSquaredError;
+
+        IndexedImage(final int width, final int height, final int[] palette, final byte[] indices, final double meanSquaredError) {
+            this.width = width;
+            this.height = height;
+            this.palette = palette;
+            this.indices = indices;
+            this.meanSquaredError = meanSquaredError;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        /**
+         * Returns the smallest number of bits per pixel which can index the palette: 1, 2, 4 or 8.
+         */
+        public int getBitDepth() {
+            int colors = palette.length;
+            return colors <= 2 ? 1 : colors <= 4 ? 2 : colors <= 16 ? 4 : 8;
+        }
+
+        /**
+         * Returns the palette as RGB triplets.
+         */
+        public byte[] getPalette() {
+            byte[] rgb = new byte[3 * palette.length];
+            for (int i = 0, j = 0; i < palette.length; i++) {
+                rgb[j++] = (byte) (palette[i] >> 16);
+                rgb[j++] = (byte) (palette[i] >> 8);
+                rgb[j++] = (byte) palette[i];
+            }
+            return rgb;
+        }
+
+        public int getColorCount() {
+            return palette.length;
+        }
+
+        /**
+         * Packs the indices with {@link #getBitDepth()} bits per pixel, each row starting on a byte boundary.
+         * @param filterByte true to start each row with a zero byte, which is the PNG filter type <code>None</code>
+         * @return the packed rows
+         */
+        public byte[] pack(final boolean filterByte) {
+            int depth = getBitDepth();
+            int perByte = 8 / depth;
+            int stride = (width + perByte - 1) / perByte + (filterByte ? 1 : 0);
+            byte[] packed = new byte[stride * height];
+            for (int y = 0; y < height; y++) {
+                int offset = y * stride + (filterByte ? 1 : 0);
+                int source = y * width;
+                if (depth == 8) {
+                    System.arraycopy(indices, source, packed, offset, width);
+                    continue;
+                }
+                for (int x = 0; x < width; x++) {
+                    int shift = 8 - depth * (x % perByte + 1);
+                    packed[offset + x / perByte] |= (indices[source + x] & 0xFF) << shift;
+                }
+            }
+            return packed;
+        }
+
+        /**
+         * Returns the peak signal-to-noise ratio of the indexed image, compared to the original one, in decibels.
+         * It is infinite when the colours were indexed without loss.
+         */
+        public double getPsnr() {
+            return meanSquaredError == 0 ? Double.POSITIVE_INFINITY : 10 * Math.log10(255.0 * 255.0 / meanSquaredError);
+        }
+    }
+}
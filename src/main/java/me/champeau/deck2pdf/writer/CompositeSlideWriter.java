@@ -0,0 +1,268 @@
+/*
+ * Copyright 2003-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.champeau.deck2pdf.writer;
+
+import me.champeau.deck2pdf.Profile;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Writes each slide to several outputs, so that a PDF document, full size images and thumbnails can be produced
+ * from a single capture of the deck. Outputs are separated with commas, and each output may be followed by the
+ * size of its slides, like <code>slides.pdf,slides/%03d.png,thumbs/%03d.jpg@320x</code>. When only the width or
+ * the height is given, the aspect ratio of the slides is kept.
+ * <p/>
+ * Each slide is scaled and written to every output in parallel.
+ */
+public class CompositeSlideWriter extends SlideWriter {
+    private static final Pattern SIZE = Pattern.compile("(.+)@(\\d*)x(\\d*)");
+
+    private final List<Output> outputs;
+    private final ExecutorService executor;
+
+    private CompositeSlideWriter(final List<Output> outputs) {
+        this.outputs = outputs;
+        // the outputs record their phases and bytes into the metrics of the export
+        for (Output output : outputs) {
+            output.writer.setMetrics(metrics);
+        }
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(outputs.size(), r -> {
+            Thread thread = new Thread(r, "deck2pdf-output-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Tells if an export file describes several outputs, or scaled slides.
+     * @param exportFile the export file
+     */
+    static boolean isComposite(final String exportFile) {
+        if (exportFile.indexOf(',') >= 0) {
+            return true;
+        }
+        Matcher matcher = SIZE.matcher(exportFile);
+        return matcher.matches() && !(matcher.group(2).isEmpty() && matcher.group(3).isEmpty());
+    }
+
+    static CompositeSlideWriter create(Profile profile, String exportFile, int width, int height, float quality, Map<String, ?> options) throws SlideExportException {
+        String[] specs = exportFile.split(",");
+        List<Output> outputs = new ArrayList<>();
+        try {
+            // created in reverse order, so that the profile is given the document of the first PDF output
+            for (int i = specs.length - 1; i >= 0; i--) {
+                String spec = specs[i].trim();
+                if (spec.isEmpty()) {
+                    continue;
+                }
+                Matcher matcher = SIZE.matcher(spec);
+                int targetWidth = 0;
+                int targetHeight = 0;
+                String file = spec;
+                if (matcher.matches()) {
+                    file = matcher.group(1);
+                    targetWidth = matcher.group(2).isEmpty() ? 0 : Integer.valueOf(matcher.group(2));
+                    targetHeight = matcher.group(3).isEmpty() ? 0 : Integer.valueOf(matcher.group(3));
+                }
+                int[] size = scaledSize(width, height, targetWidth, targetHeight);
+                outputs.add(0, new Output(SlideWriter.of(profile, file, size[0], size[1], quality, options), targetWidth, targetHeight));
+            }
+        } catch (SlideExportException | RuntimeException e) {
+            for (Output output : outputs) {
+                try {
+                    output.writer.close();
+                } catch (SlideExportException ignored) {
+                    // the original failure is reported
+                }
+            }
+            throw e instanceof SlideExportException ? (SlideExportException) e : new SlideExportException(e);
+        }
+        if (outputs.isEmpty()) {
+            throw new SlideExportException(new IllegalArgumentException("No output in " + exportFile));
+        }
+        return new CompositeSlideWriter(outputs);
+    }
+
+    /**
+     * Computes the size of scaled slides.
+     * @param width the width of the slides
+     * @param height the height of the slides
+     * @param targetWidth the requested width, or 0 to keep the aspect ratio
+     * @param targetHeight the requested height, or 0 to keep the aspect ratio
+     * @return the width and the height of the scaled slides
+     */
+    private static int[] scaledSize(final int width, final int height, final int targetWidth, final int targetHeight) {
+        if (targetWidth <= 0 && targetHeight <= 0) {
+            return new int[]{width, height};
+        }
+        if (targetHeight <= 0) {
+            return new int[]{targetWidth, Math.max(1, Math.round((float) height * targetWidth / width))};
+        }
+        if (targetWidth <= 0) {
+            return new int[]{Math.max(1, Math.round((float) width * targetHeight / height)), targetHeight};
+        }
+        return new int[]{targetWidth, targetHeight};
+    }
+
+    @Override
+    public void writeSlide(final int[] pixels, final int width, final int height, final int numSlides, final int current) throws SlideExportException {
+        // the pixels are only read, so outputs which don't scale slides share the buffer
+        fanOut(output -> {
+            if (output.isScaled()) {
+                output.writer.writeSlide(output.scale(wrap(pixels, width, height)), numSlides, current);
+            } else {
+                output.writer.writeSlide(pixels, width, height, numSlides, current);
+            }
+        });
+    }
+
+    @Override
+    public void writeSlide(final int[] pixels, final int width, final int height, final int numSlides, final int current, final Runnable release) throws SlideExportException {
+        // the buffer is released once every output is done with it
+        AtomicInteger users = new AtomicInteger(outputs.size());
+        Runnable released = () -> {
+            if (users.decrementAndGet() == 0) {
+                release.run();
+            }
+        };
+        fanOut(output -> {
+            if (output.isScaled()) {
+                BufferedImage scaled = output.scale(wrap(pixels, width, height));
+                released.run();
+                output.writer.writeSlide(scaled, numSlides, current);
+            } else {
+                output.writer.writeSlide(pixels, width, height, numSlides, current, released);
+            }
+        });
+    }
+
+    @Override
+    public void writeSlide(final BufferedImage export, final int numSlides, final int current) throws SlideExportException {
+        fanOut(output -> output.writer.writeSlide(output.isScaled() ? output.scale(export) : export, numSlides, current));
+    }
+
+    /**
+     * Writes a slide to every output in parallel, and waits until every output is done with it, so that the
+     * caller can reuse the slide buffer.
+     */
+    private void fanOut(final SlideAction action) throws SlideExportException {
+        List<CompletableFuture<Void>> writes = new ArrayList<>(outputs.size());
+        for (Output output : outputs) {
+            writes.add(CompletableFuture.runAsync(() -> {
+                try {
+                    action.write(output);
+                } catch (SlideExportException e) {
+                    throw new CompletionException(e);
+                }
+            }, executor));
+        }
+        try {
+            CompletableFuture.allOf(writes.toArray(new CompletableFuture[writes.size()])).join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof SlideExportException ? (SlideExportException) cause : new SlideExportException(cause);
+        }
+    }
+
+    @Override
+    public void setMetrics(final SlideMetrics metrics) {
+        super.setMetrics(metrics);
+        for (Output output : outputs) {
+            output.writer.setMetrics(metrics);
+        }
+    }
+
+    @Override
+    public void close() throws SlideExportException {
+        SlideExportException failure = null;
+        try {
+            for (Output output : outputs) {
+                try {
+                    output.writer.close();
+                } catch (SlideExportException e) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+        super.close();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private interface SlideAction {
+        void write(Output output) throws SlideExportException;
+    }
+
+    private static class Output {
+        private final SlideWriter writer;
+        private final int width;
+        private final int height;
+
+        private Output(final SlideWriter writer, final int width, final int height) {
+            this.writer = writer;
+            this.width = width;
+            this.height = height;
+        }
+
+        private boolean isScaled() {
+            return width > 0 || height > 0;
+        }
+
+        /**
+         * Scales a slide, halving its size in several steps when it is reduced a lot, which is much sharper than
+         * a single bilinear step, and much faster than bicubic interpolation.
+         */
+        private BufferedImage scale(final BufferedImage image) {
+            int[] size = scaledSize(image.getWidth(), image.getHeight(), width, height);
+            BufferedImage current = image;
+            int w = image.getWidth();
+            int h = image.getHeight();
+            do {
+                w = w / 2 >= size[0] ? w / 2 : size[0];
+                h = h / 2 >= size[1] ? h / 2 : size[1];
+                BufferedImage scaled = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+                Graphics2D g = scaled.createGraphics();
+                try {
+                    g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                    g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+                    g.drawImage(current, 0, 0, w, h, null);
+                } finally {
+                    g.dispose();
+                }
+                current = scaled;
+            } while (w != size[0] || h != size[1]);
+            return current;
+        }
+    }
+}
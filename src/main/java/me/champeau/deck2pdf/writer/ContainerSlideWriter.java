@@ -0,0 +1,272 @@
+/*
+ * Copyright 2003-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.champeau.deck2pdf.writer;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Base class for writers storing every slide into a single container file, like a ZIP archive or a multi-page TIFF
+ * file, instead of creating one file per slide. Slides are encoded in parallel by a pool of encoder threads, then
+ * appended to the container in slide order by a single writer thread, so the container is written with one
+ * sequential stream, and synced to disk only once, when the export is complete.
+ * <p/>
+ * Identical frames are only encoded once: subclasses receive them as duplicates of a previous slide, which they can
+ * reference instead of storing them again.
+ *
+ * @param <T> the type of the encoded slides
+ */
+public abstract class ContainerSlideWriter<T> extends SlideWriter {
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private final FileOutputStream file;
+    private final PositionOutputStream out;
+    private final Set<String> submitted = new HashSet<>();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private final AtomicInteger duplicates = new AtomicInteger();
+    private final ExecutorService encoders;
+    private final ExecutorService writer;
+    private final Semaphore inFlight;
+    private CompletableFuture<Void> written = CompletableFuture.completedFuture(null);
+
+    /**
+     * Creates a writer of a container file.
+     * @param exportFile the container file, which is replaced if it exists
+     * @param threads the number of encoder threads
+     * @throws SlideExportException if the file cannot be created
+     */
+    protected ContainerSlideWriter(final String exportFile, final int threads) throws SlideExportException {
+        this(openFile(exportFile), threads);
+    }
+
+    /**
+     * Creates a writer of a container written to a stream.
+     * @param out the stream, which is closed once the writer is closed
+     * @param threads the number of encoder threads
+     */
+    protected ContainerSlideWriter(final OutputStream out, final int threads) {
+        this.file = out instanceof FileOutputStream ? (FileOutputStream) out : null;
+        this.out = new PositionOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+        int encoderThreads = Math.max(1, threads);
+        AtomicInteger threadCount = new AtomicInteger();
+        this.encoders = Executors.newFixedThreadPool(encoderThreads, r -> {
+            Thread thread = new Thread(r, "deck2pdf-encoder-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.writer = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "deck2pdf-container-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.inFlight = new Semaphore(2 * encoderThreads);
+    }
+
+    private static FileOutputStream openFile(final String exportFile) throws SlideExportException {
+        try {
+            return new FileOutputStream(new File(exportFile));
+        } catch (IOException e) {
+            throw new SlideExportException(e);
+        }
+    }
+
+    @Override
+    public void writeSlide(final int[] pixels, final int width, final int height, final int numSlides, final int current) throws SlideExportException {
+        // slides are encoded asynchronously, so the pixels must be copied before the caller reuses the buffer
+        writeSlide(wrap(pixels.clone(), width, height), numSlides, current);
+    }
+
+    @Override
+    public void writeSlide(final int[] pixels, final int width, final int height, final int numSlides, final int current, final Runnable release) throws SlideExportException {
+        // the buffer is released once the slide is encoded, instead of being copied
+        submit(wrap(pixels, width, height), numSlides, current, release);
+    }
+
+    @Override
+    public void writeSlide(final BufferedImage export, final int numSlides, final int current) throws SlideExportException {
+        submit(export, numSlides, current, () -> { });
+    }
+
+    private void submit(final BufferedImage export, final int numSlides, final int current, final Runnable release) throws SlideExportException {
+        checkFailure();
+        final String digest = FrameDigest.of(export);
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SlideExportException(e);
+        }
+        final int width = export.getWidth();
+        final int height = export.getHeight();
+        CompletableFuture<T> encoded;
+        if (submitted.add(digest)) {
+            encoded = CompletableFuture.supplyAsync(() -> {
+                long start = System.nanoTime();
+                try {
+                    return encode(export, digest);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } finally {
+                    metrics.recordSince(current, SlideMetrics.Phase.encode, start);
+                }
+            }, encoders);
+        } else {
+            duplicates.incrementAndGet();
+            encoded = CompletableFuture.completedFuture(null);
+        }
+        encoded.whenComplete((slide, error) -> release.run());
+        // slides are appended in the order they are submitted, whatever the order in which encoding completes
+        written = written.thenCombineAsync(encoded, (ignored, slide) -> {
+            long start = System.nanoTime();
+            long position = out.position;
+            try {
+                append(slide, digest, width, height, numSlides, current);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            metrics.recordSince(current, SlideMetrics.Phase.write, start);
+            metrics.addOutputBytes(current, out.position - position);
+            return (Void) null;
+        }, writer).whenComplete((result, error) -> {
+            inFlight.release();
+            if (error != null) {
+                failure.compareAndSet(null, error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+            }
+        });
+    }
+
+    /**
+     * Encodes a slide. This method is called concurrently from several encoder threads.
+     * @param export the slide image
+     * @param digest the digest of the slide pixels
+     * @return the encoded slide
+     * @throws IOException if the slide cannot be encoded
+     */
+    protected abstract T encode(BufferedImage export, String digest) throws IOException;
+
+    /**
+     * Appends a slide to the container. This method is called from the writer thread, in slide order.
+     * @param encoded the encoded slide, or null if the slide is identical to a previous slide with the same digest
+     * @param digest the digest of the slide pixels
+     * @param width the width of the slide
+     * @param height the height of the slide
+     * @param numSlides the total number of slides, or -1 if unknown
+     * @param current the slide number
+     * @throws IOException if the slide cannot be written
+     */
+    protected abstract void append(T encoded, String digest, int width, int height, int numSlides, int current) throws IOException;
+
+    /**
+     * Writes the end of the container, once every slide is appended.
+     * @throws IOException if the container cannot be written
+     */
+    protected abstract void finishContainer() throws IOException;
+
+    /**
+     * Returns the stream of the container, which must only be written from {@link #append} and {@link #finishContainer()}.
+     */
+    protected OutputStream getOutput() {
+        return out;
+    }
+
+    /**
+     * Returns the number of bytes written to the container so far.
+     */
+    protected long getPosition() {
+        return out.position;
+    }
+
+    private void checkFailure() throws SlideExportException {
+        Throwable error = failure.get();
+        if (error != null) {
+            throw new SlideExportException(error instanceof UncheckedIOException ? error.getCause() : error);
+        }
+    }
+
+    /**
+     * Waits for every slide to be appended, then completes the container and syncs it to disk.
+     * @throws SlideExportException with the first failure, if any slide couldn't be written
+     */
+    @Override
+    public void close() throws SlideExportException {
+        try {
+            written.join();
+        } catch (CompletionException e) {
+            // the first failure is recorded when a slide is appended
+        } finally {
+            encoders.shutdown();
+            writer.shutdown();
+        }
+        try {
+            if (failure.get() == null) {
+                finishContainer();
+                out.flush();
+                if (file != null) {
+                    file.getFD().sync();
+                }
+            }
+        } catch (IOException e) {
+            failure.compareAndSet(null, e);
+        } finally {
+            try {
+                out.close();
+            } catch (IOException e) {
+                failure.compareAndSet(null, e);
+            }
+        }
+        super.close();
+        int reused = duplicates.get();
+        if (reused > 0) {
+            System.out.printf("Stored %d duplicate slide%s only once%n", reused, reused > 1 ? "s" : "");
+        }
+        checkFailure();
+    }
+
+    private static class PositionOutputStream extends FilterOutputStream {
+        private volatile long position;
+
+        private PositionOutputStream(final OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            out.write(b);
+            position++;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            out.write(b, off, len);
+            position += len;
+        }
+    }
+}
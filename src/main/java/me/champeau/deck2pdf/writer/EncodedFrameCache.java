@@ -0,0 +1,196 @@
+/*
+ * Copyright 2003-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.champeau.deck2pdf.writer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A persistent, content addressed cache of encoded frames. Entries are keyed by the digest of the
+ * captured pixels and the encoding settings of the writer, so that re-exporting a deck in which only
+ * a few slides changed only encodes those slides again. The cache is bounded in size: least recently
+ * used entries are evicted first. Only the in-memory index of the entries is locked, so that slides encoded
+ * in parallel read and write entries concurrently.
+ * <p/>
+ * The cache is enabled from command line with <code>--cache=true</code>, or <code>--cacheDir=/path/to/dir</code>
+ * to use another directory than <code>~/.deck2pdf/cache</code>. Its size, in megabytes, is set with
+ * <code>--cacheSize</code>.
+ *
+ * @author Cédric Champeau
+ */
+public class EncodedFrameCache {
+    public static final int DEFAULT_CACHE_SIZE_MB = 512;
+
+    private static final String ENTRY_SUFFIX = ".frame";
+
+    private final File directory;
+    private final long maxSize;
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+
+    // guarded by this: the length of each entry, in access order, and the total size of the entries
+    private LinkedHashMap<String, Long> index;
+    private long size;
+
+    public EncodedFrameCache(final File directory, final long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Creates a cache from the command line options.
+     * @param options the command line options
+     * @return a cache, or null if caching is not enabled
+     */
+    public static EncodedFrameCache fromOptions(final Map<String, ?> options) {
+        if (options == null) {
+            return null;
+        }
+        Object dir = options.get("cacheDir");
+        Object enabled = options.get("cache");
+        if (dir == null && (enabled == null || !Boolean.valueOf(enabled.toString()))) {
+            return null;
+        }
+        File directory = CacheFiles.directory(dir, "cache");
+        Object size = options.get("cacheSize");
+        int sizeMb = size == null ? DEFAULT_CACHE_SIZE_MB : Integer.valueOf(size.toString());
+        return new EncodedFrameCache(directory, sizeMb * 1024L * 1024L);
+    }
+
+    /**
+     * Computes the key of a frame.
+     * @param frameDigest the digest of the captured pixels, as computed by {@link FrameDigest}
+     * @param settings a description of the encoding settings
+     * @return the cache key
+     */
+    public String key(final String frameDigest, final String settings) {
+        return CacheFiles.key(frameDigest, settings);
+    }
+
+    /**
+     * Returns the encoded bytes of a frame.
+     * @param key the cache key
+     * @return the encoded bytes, or null if the frame is not cached
+     */
+    public byte[] get(final String key) {
+        loadIndex();
+        File entry = entryFile(key);
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(entry.toPath());
+        } catch (IOException e) {
+            // missing or unreadable entries are treated as misses
+            misses.incrementAndGet();
+            return null;
+        }
+        // the modification time keeps track of the least recently used entries between exports
+        entry.setLastModified(System.currentTimeMillis());
+        synchronized (this) {
+            index.get(key);
+        }
+        hits.incrementAndGet();
+        return bytes;
+    }
+
+    /**
+     * Stores the encoded bytes of a frame, evicting least recently used entries if needed.
+     * Failing to write the cache never fails the export.
+     * @param key the cache key
+     * @param bytes the encoded bytes
+     */
+    public void put(final String key, final byte[] bytes) {
+        if (bytes.length > maxSize) {
+            return;
+        }
+        loadIndex();
+        List<File> evicted = new ArrayList<>();
+        try {
+            // entries are written to a temporary file then moved, so that readers never see partial entries
+            Files.createDirectories(directory.toPath());
+            File tmp = File.createTempFile("entry", ".tmp", directory);
+            try {
+                Files.write(tmp.toPath(), bytes);
+                Files.move(tmp.toPath(), entryFile(key).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp.toPath());
+            }
+        } catch (IOException e) {
+            System.err.println("Unable to write frame cache entry: " + e.getMessage());
+            return;
+        }
+        synchronized (this) {
+            Long previous = index.put(key, (long) bytes.length);
+            size += bytes.length - (previous == null ? 0 : previous);
+            Iterator<Map.Entry<String, Long>> it = index.entrySet().iterator();
+            while (size > maxSize && it.hasNext()) {
+                Map.Entry<String, Long> eldest = it.next();
+                if (eldest.getKey().equals(key)) {
+                    continue;
+                }
+                size -= eldest.getValue();
+                evicted.add(entryFile(eldest.getKey()));
+                it.remove();
+            }
+        }
+        for (File file : evicted) {
+            file.delete();
+        }
+    }
+
+    /**
+     * Loads the index of the entries on first use, from the least to the most recently used.
+     */
+    private synchronized void loadIndex() {
+        if (index != null) {
+            return;
+        }
+        index = new LinkedHashMap<>(16, 0.75f, true);
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(ENTRY_SUFFIX));
+        if (files != null) {
+            Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+            for (File file : files) {
+                String name = file.getName();
+                long length = file.length();
+                index.put(name.substring(0, name.length() - ENTRY_SUFFIX.length()), length);
+                size += length;
+            }
+        }
+    }
+
+    private File entryFile(final String key) {
+        return new File(directory, key + ENTRY_SUFFIX);
+    }
+
+    public void printStatistics() {
+        int hits = this.hits.get();
+        int misses = this.misses.get();
+        int total = hits + misses;
+        System.out.printf("Frame cache: %d hit%s, %d miss%s (%d%% hit ratio)%n",
+                hits, hits == 1 ? "" : "s",
+                misses, misses == 1 ? "" : "es",
+                total == 0 ? 0 : (100 * hits) / total);
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2003-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.champeau.deck2pdf.writer;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.security.MessageDigest;
+
+/**
+ * Computes a content hash of the pixels of a captured frame, so that identical frames
+ * can be detected and written only once.
+ *
+ * @author Cédric Champeau
+ */
+public final class FrameDigest {
+    private FrameDigest() {
+    }
+
+    /**
+     * Computes the digest of an image. Two images with the same dimensions and the same
+     * opaque RGB pixels have the same digest.
+     * @param image the image
+     * @return an hexadecimal representation of the digest
+     */
+    public static String of(final BufferedImage image) {
+        MessageDigest md = CacheFiles.sha256();
+        int width = image.getWidth();
+        int height = image.getHeight();
+        // the buffer also holds the dimensions, which don't fit in a row of a 1 pixel wide image
+        ByteBuffer row = ByteBuffer.allocate(Math.max(4 * width, 8));
+        IntBuffer rowInts = row.asIntBuffer();
+        rowInts.put(width).put(height);
+        md.update(row.array(), 0, 8);
+        int[] pixels = directPixels(image);
+        int[] rowPixels = pixels == null ? new int[width] : null;
+        for (int y = 0; y < height; y++) {
+            rowInts.clear();
+            if (pixels != null) {
+                for (int x = 0, offset = y * width; x < width; x++) {
+                    rowInts.put(pixels[offset + x] | 0xFF000000);
+                }
+            } else {
+                image.getRGB(0, y, width, 1, rowPixels, 0, width);
+                for (int x = 0; x < width; x++) {
+                    rowInts.put(rowPixels[x] | 0xFF000000);
+                }
+            }
+            md.update(row.array(), 0, 4 * width);
+        }
+        return CacheFiles.hex(md.digest());
+    }
+
+    /**
+     * Returns the backing array of an opaque RGB image if its pixels are stored contiguously, or null.
+     */
+    private static int[] directPixels(final BufferedImage image) {
+        if (image.getType() != BufferedImage.TYPE_INT_RGB) {
+            return null;
+        }
+        Raster raster = image.getRaster();
+        if (!(raster.getDataBuffer() instanceof DataBufferInt) || !(raster.getSampleModel() instanceof SinglePixelPackedSampleModel)) {
+            return null;
+        }
+        SinglePixelPackedSampleModel sampleModel = (SinglePixelPackedSampleModel) raster.getSampleModel();
+        DataBufferInt buffer = (DataBufferInt) raster.getDataBuffer();
+        if (sampleModel.getScanlineStride() != image.getWidth() || buffer.getOffset() != 0
+                || raster.getSampleModelTranslateX() != 0 || raster.getSampleModelTranslateY() != 0) {
+            return null;
+        }
+        return buffer.getData();
+    }
+}
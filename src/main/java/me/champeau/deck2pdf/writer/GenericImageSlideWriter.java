@@ -18,21 +18,29 @@ package me.champeau.deck2pdf.writer;
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.io.OutputStream;
 
 public class GenericImageSlideWriter extends MultiFileSlideWriter {
     private final String format;
 
     public GenericImageSlideWriter(String exportFile, String format) {
-        super(exportFile);
+        this(exportFile, format, Runtime.getRuntime().availableProcessors());
+    }
+
+    public GenericImageSlideWriter(String exportFile, String format, int threads) {
+        super(exportFile, threads);
         this.format = format;
     }
 
     @Override
-    public void writeSlide(final BufferedImage export, final int numSlides, final int current) throws SlideExportException {
-        try {
-            ImageIO.write(export, format, getOutputFile(numSlides, current));
-        } catch (IOException e) {
-            throw new SlideExportException(e);
+    protected void writeImage(final BufferedImage export, final OutputStream out) throws IOException {
+        if (!ImageIO.write(export, format, out)) {
+            throw new IOException("No image writer available for format " + format);
         }
     }
+
+    @Override
+    protected String getEncodingSettings() {
+        return format;
+    }
 }
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2003-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.champeau.deck2pdf.writer;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Encodes slide images into an image format, for writers which store the encoded images in a container.
+ * Encoders are called concurrently from several encoder threads.
+ *
+ * @author Cédric Champeau
+ */
+public interface ImageEncoder {
+    void encode(BufferedImage image, OutputStream out) throws IOException;
+
+    /**
+     * Returns a description of the settings of this encoder, which determine the encoded bytes.
+     * @return the encoding settings
+     */
+    String getSettings();
+
+    /**
+     * Releases the resources of this encoder, once every image is encoded.
+     */
+    default void dispose() {
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2003-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.champeau.deck2pdf.writer;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Encodes slides as JPEG images, with the given quality.
+ *
+ * @author Cédric Champeau
+ */
+class JpegEncoder implements ImageEncoder {
+    // image writers are not thread-safe, so each encoder thread uses its own
+    private final ThreadLocal<ImageWriter> imageWriter = ThreadLocal.withInitial(this::createImageWriter);
+    private final List<ImageWriter> imageWriters = new CopyOnWriteArrayList<>();
+    private final float quality;
+
+    JpegEncoder(final float quality) {
+        this.quality = quality;
+    }
+
+    private ImageWriter createImageWriter() {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        imageWriters.add(writer);
+        return writer;
+    }
+
+    @Override
+    public void encode(final BufferedImage image, final OutputStream out) throws IOException {
+        ImageWriter writer = imageWriter.get();
+        ImageWriteParam imageWriteParams = writer.getDefaultWriteParam();
+        if (quality > 0 && quality <= 100) {
+            imageWriteParams.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            imageWriteParams.setCompressionQuality(quality / 100.0f);
+        }
+        ImageOutputStream ios = ImageIO.createImageOutputStream(out);
+        writer.setOutput(ios);
+        try {
+            writer.write(null, new IIOImage(image, null, null), imageWriteParams);
+        } finally {
+            ios.flush();
+            ios.close();
+        }
+    }
+
+    @Override
+    public String getSettings() {
+        return "jpeg:" + quality;
+    }
+
+    @Override
+    public void dispose() {
+        for (ImageWriter writer : imageWriters) {
+            writer.dispose();
+        }
+    }
+}
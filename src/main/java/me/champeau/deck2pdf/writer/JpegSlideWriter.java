@@ -15,46 +15,38 @@
  */
 package me.champeau.deck2pdf.writer;
 
-import javax.imageio.IIOImage;
-import javax.imageio.ImageIO;
-import javax.imageio.ImageWriteParam;
-import javax.imageio.ImageWriter;
-import javax.imageio.stream.ImageOutputStream;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.io.OutputStream;
 
 public class JpegSlideWriter extends MultiFileSlideWriter {
-    private final ImageWriter imageWriter;
-    private final ImageWriteParam imageWriteParams;
+    private final JpegEncoder encoder;
 
     public JpegSlideWriter(String exportFile, float quality) {
-        super(exportFile);
-        imageWriter = ImageIO.getImageWritersByFormatName("jpeg").next();
-        imageWriteParams = imageWriter.getDefaultWriteParam();
-        if (quality > 0 && quality <= 100) {
-            imageWriteParams.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
-            imageWriteParams.setCompressionQuality(quality / 100.0f);
-        }
+        this(exportFile, quality, Runtime.getRuntime().availableProcessors());
+    }
+
+    public JpegSlideWriter(String exportFile, float quality, int threads) {
+        super(exportFile, threads);
+        this.encoder = new JpegEncoder(quality);
     }
 
     @Override
-    public void writeSlide(final BufferedImage export, final int numSlides, final int current) throws SlideExportException {
-        try {
-            ImageOutputStream ios = ImageIO.createImageOutputStream(getOutputFile(numSlides, current));
-            imageWriter.setOutput(ios);
-            try {
-                imageWriter.write(null, new IIOImage(export, null, null), imageWriteParams);
-            } finally {
-                ios.flush();
-                ios.close();
-            }
-        } catch (IOException e) {
-            throw new SlideExportException(e);
-        }
+    protected void writeImage(final BufferedImage export, final OutputStream out) throws IOException {
+        encoder.encode(export, out);
     }
 
     @Override
-    public void close() {
-        imageWriter.dispose();
+    protected String getEncodingSettings() {
+        return encoder.getSettings();
+    }
+
+    @Override
+    public void close() throws SlideExportException {
+        try {
+            super.close();
+        } finally {
+            encoder.dispose();
+        }
     }
 }
@@ -15,18 +15,203 @@
  */
 package me.champeau.deck2pdf.writer;
 
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Pattern;
 
+/**
+ * Base class for writers generating one file per slide. Slides are encoded in parallel by a pool of
+ * encoder threads, while the number of slides being encoded is bounded. File names are computed when
+ * slides are submitted, so they don't depend on the order in which encoding completes.
+ * <p/>
+ * Identical frames are only encoded once: the files of the duplicates are hard links (or symbolic links
+ * if hard links are not supported) to the file of the first occurrence.
+ */
 public abstract class MultiFileSlideWriter extends SlideWriter {
     // ex. %04d
     private static final Pattern NUMBER_FORMAT_PATTERN = Pattern.compile("%0?[1-9]\\d*d");
     private static final String IMAGE_EXT_REGEX = "\\.(png|jp(?:e)?g)$";
 
     protected final String exportFile;
+    private final Map<String, CompletableFuture<File>> writtenFrames = new HashMap<>();
+    private final List<CompletableFuture<File>> pending = new ArrayList<>();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private final AtomicInteger duplicates = new AtomicInteger();
+    private final ExecutorService encoders;
+    private final Semaphore inFlight;
 
     protected MultiFileSlideWriter(final String exportFile) {
+        this(exportFile, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a multi-file writer.
+     * @param exportFile the export file name pattern
+     * @param threads the number of encoder threads
+     */
+    protected MultiFileSlideWriter(final String exportFile, final int threads) {
         this.exportFile = exportFile;
+        int encoderThreads = Math.max(1, threads);
+        AtomicInteger threadCount = new AtomicInteger();
+        this.encoders = Executors.newFixedThreadPool(encoderThreads, r -> {
+            Thread thread = new Thread(r, "deck2pdf-encoder-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.inFlight = new Semaphore(2 * encoderThreads);
+    }
+
+    @Override
+    public void writeSlide(final int[] pixels, final int width, final int height, final int numSlides, final int current) throws SlideExportException {
+        // slides are encoded asynchronously, so the pixels must be copied before the caller reuses the buffer
+        writeSlide(wrap(pixels.clone(), width, height), numSlides, current);
+    }
+
+    @Override
+    public void writeSlide(final int[] pixels, final int width, final int height, final int numSlides, final int current, final Runnable release) throws SlideExportException {
+        // the buffer is released once the slide is encoded, instead of being copied
+        submit(wrap(pixels, width, height), numSlides, current, release);
+    }
+
+    @Override
+    public void writeSlide(final BufferedImage export, final int numSlides, final int current) throws SlideExportException {
+        submit(export, numSlides, current, () -> { });
+    }
+
+    private void submit(final BufferedImage export, final int numSlides, final int current, final Runnable release) throws SlideExportException {
+        checkFailure();
+        final File file = getOutputFile(numSlides, current);
+        final String digest = FrameDigest.of(export);
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SlideExportException(e);
+        }
+        CompletableFuture<File> original = writtenFrames.get(digest);
+        CompletableFuture<File> task;
+        if (original != null) {
+            task = original.thenApplyAsync(target -> {
+                long start = System.nanoTime();
+                if (link(file.toPath(), target.toPath())) {
+                    metrics.recordSince(current, SlideMetrics.Phase.write, start);
+                    duplicates.incrementAndGet();
+                    return target;
+                }
+                return encode(export, file, digest, current);
+            }, encoders);
+        } else {
+            task = CompletableFuture.supplyAsync(() -> encode(export, file, digest, current), encoders);
+            writtenFrames.put(digest, task);
+        }
+        // close() waits for this stage, so that the failure is recorded before it is checked
+        pending.add(task.whenComplete((result, error) -> {
+            release.run();
+            inFlight.release();
+            if (error != null) {
+                failure.compareAndSet(null, error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+            }
+        }));
+    }
+
+    private File encode(final BufferedImage export, final File file, final String digest, final int current) {
+        try {
+            // slides are encoded in memory first, so that encoding and I/O can be measured separately
+            long start = System.nanoTime();
+            String key = cache == null ? null : cache.key(digest, getEncodingSettings());
+            byte[] encoded = key == null ? null : cache.get(key);
+            if (encoded == null) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                writeImage(export, out);
+                encoded = out.toByteArray();
+                if (key != null) {
+                    cache.put(key, encoded);
+                }
+            }
+            metrics.recordSince(current, SlideMetrics.Phase.encode, start);
+            start = System.nanoTime();
+            Files.write(file.toPath(), encoded);
+            metrics.recordSince(current, SlideMetrics.Phase.write, start);
+            metrics.addOutputBytes(current, encoded.length);
+            return file;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void checkFailure() throws SlideExportException {
+        Throwable error = failure.get();
+        if (error != null) {
+            throw new SlideExportException(error instanceof UncheckedIOException ? error.getCause() : error);
+        }
+    }
+
+    /**
+     * Encodes a slide. This method is called concurrently from several encoder threads.
+     * @param export the slide image
+     * @param out the stream the encoded image must be written to
+     * @throws IOException if the slide cannot be written
+     */
+    protected abstract void writeImage(BufferedImage export, OutputStream out) throws IOException;
+
+    /**
+     * Returns a description of the settings used to encode slides, used as part of the {@link EncodedFrameCache cache} key.
+     * @return the encoding settings
+     */
+    protected abstract String getEncodingSettings();
+
+    /**
+     * Waits for every slide to be encoded, then releases the encoder threads.
+     * @throws SlideExportException with the first failure, if any slide couldn't be written
+     */
+    @Override
+    public void close() throws SlideExportException {
+        try {
+            CompletableFuture.allOf(pending.toArray(new CompletableFuture[pending.size()])).join();
+        } catch (CompletionException e) {
+            // the first failure is recorded when a task completes
+        } finally {
+            encoders.shutdown();
+        }
+        super.close();
+        int linked = duplicates.get();
+        if (linked > 0) {
+            System.out.printf("Linked %d duplicate slide%s instead of encoding them again%n", linked, linked > 1 ? "s" : "");
+        }
+        checkFailure();
+    }
+
+    private static boolean link(final Path link, final Path target) {
+        try {
+            Files.createLink(link, target);
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            // hard links may not be supported by the file system, fall back to a symbolic link
+        }
+        try {
+            Path parent = link.toAbsolutePath().getParent();
+            Files.createSymbolicLink(link, parent == null ? target : parent.relativize(target.toAbsolutePath()));
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            return false;
+        }
     }
 
     protected File getOutputFile(final int numSlides, final int current) {
@@ -15,36 +15,543 @@
  */
 package me.champeau.deck2pdf.writer;
 
+import com.itextpdf.text.BadElementException;
 import com.itextpdf.text.Document;
 import com.itextpdf.text.DocumentException;
+import com.itextpdf.text.Rectangle;
+import com.itextpdf.text.pdf.PdfArray;
+import com.itextpdf.text.pdf.PdfDictionary;
+import com.itextpdf.text.pdf.PdfName;
+import com.itextpdf.text.pdf.PdfNumber;
+import com.itextpdf.text.pdf.PdfStream;
+import com.itextpdf.text.pdf.PdfString;
+import com.itextpdf.text.pdf.PdfWriter;
+import me.champeau.deck2pdf.Profile;
 
 import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Deflater;
 
+/**
+ * Writes slides as pages of a PDF document. Identical frames are embedded only once: the
+ * pages reuse the image XObject of the first occurrence. As iText images keep their pixels,
+ * only the most recently used images are remembered.
+ * <p/>
+ * Slide images can either be embedded as lossless Flate compressed bitmaps, as DCT (JPEG) images
+ * using the export quality, or the encoding can be chosen for each slide depending on its content:
+ * photo-like slides are embedded as JPEG, while flat diagrams and text are embedded with Flate.
+ * <p/>
+ * With a {@link ColorReduction}, Flate encoded slides which can be indexed are embedded as images with an indexed
+ * colour space, using 1 to 8 bits per pixel.
+ * <p/>
+ * Slides captured in tiles are embedded as one image per strip, placed one below the other on the page,
+ * so that the whole slide is never in memory.
+ * <p/>
+ * The layout of the document itself can be made more compact, with compressed cross-reference and object streams,
+ * or linearized for fast web view, so that viewers can display the first page before the whole document is
+ * downloaded. Linearization is done by <code>qpdf</code>, which must be installed. The same document is then also
+ * written with the standard layout, without keeping it, to report the bytes saved by the layout.
+ */
 public class PdfSlideWriter extends SlideWriter {
+    private static final int MAX_REMEMBERED_IMAGES = 16;
+
+    // auto encoding heuristics, computed on a sample of the pixels
+    private static final int SAMPLING_STEP = 4;
+    private static final int PHOTO_MIN_COLORS = 1024;
+    private static final double PHOTO_MIN_SMOOTH_RATIO = 0.25;
+    private static final double PHOTO_MAX_EDGE_RATIO = 0.15;
+    private static final int SMOOTH_MAX_DIFF = 48;
+
+    public enum ImageEncoding {
+        flate,
+        dct,
+        auto
+    }
+
+    public enum Layout {
+        standard,
+        compact,
+        web
+    }
+
     private final Document document;
+    private final ImageEncoding encoding;
+    private final float quality;
+    private final int compressionLevel;
+    private final JpegEncoder jpegEncoder;
+    private final Map<String, com.itextpdf.text.Image> embeddedImages = new LinkedHashMap<String, com.itextpdf.text.Image>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, com.itextpdf.text.Image> eldest) {
+            return size() > MAX_REMEMBERED_IMAGES;
+        }
+    };
+    private final Map<ImageEncoding, Integer> encodedSlides = new EnumMap<>(ImageEncoding.class);
+    private final Map<ImageEncoding, Long> encodedBytes = new EnumMap<>(ImageEncoding.class);
+    private int duplicates;
+    private Layout layout = Layout.standard;
+    private CountingOutputStream output;
+    private CountingOutputStream standardOutput;
+    private OutputStream target;
+    private File unlinearized;
+    private String qpdf;
+    private long writeNanos;
 
     public PdfSlideWriter(final Document document) {
+        this(document, ImageEncoding.flate, 0, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Creates a PDF writer.
+     * @param document the document the slides are added to
+     * @param encoding the encoding of slide images
+     * @param quality the JPEG quality, from 0 to 100, used for DCT encoded images
+     * @param compressionLevel the compression level, from 0 to 9 (or -1 for the default), used for Flate encoded images
+     */
+    public PdfSlideWriter(final Document document, final ImageEncoding encoding, final float quality, final int compressionLevel) {
         this.document = document;
+        this.encoding = encoding;
+        this.quality = quality;
+        this.compressionLevel = compressionLevel;
+        this.jpegEncoder = new JpegEncoder(quality);
+    }
+
+    /**
+     * Creates a writer for a PDF export file, configured from the command line options.
+     */
+    static PdfSlideWriter create(Profile profile, String exportFile, int width, int height, float quality, Map<String, ?> options) throws SlideExportException {
+        try {
+            return create(profile, new FileOutputStream(exportFile), width, height, quality, options);
+        } catch (FileNotFoundException e) {
+            throw new SlideExportException(e);
+        }
+    }
+
+    /**
+     * Creates a writer for a PDF document written to a stream, which is closed when the writer is closed.
+     */
+    static PdfSlideWriter create(Profile profile, OutputStream out, int width, int height, float quality, Map<String, ?> options) throws SlideExportException {
+        Object pdfImage = options.get("pdfImage");
+        Object pdfCompression = options.get("pdfCompression");
+        Object pdfStreamCompression = options.get("pdfStreamCompression");
+        Object pdfLayout = options.get("pdfLayout");
+        ImageEncoding encoding;
+        Layout layout;
+        try {
+            encoding = pdfImage == null ? ImageEncoding.flate : ImageEncoding.valueOf(pdfImage.toString());
+            layout = pdfLayout == null ? Layout.standard : Layout.valueOf(pdfLayout.toString());
+        } catch (IllegalArgumentException e) {
+            throw new SlideExportException(e);
+        }
+        int compressionLevel = pdfCompression == null ? Deflater.DEFAULT_COMPRESSION : Integer.valueOf(pdfCompression.toString());
+        int streamCompressionLevel = pdfStreamCompression == null ? PdfStream.DEFAULT_COMPRESSION : Integer.valueOf(pdfStreamCompression.toString());
+        Document document = new Document(new Rectangle(width, height), 0, 0, 0, 0);
+        CountingOutputStream output = null;
+        CountingOutputStream standardOutput = null;
+        File unlinearized = null;
+        try {
+            if (layout == Layout.web) {
+                // the document is linearized once complete, so it is first written to a temporary file
+                unlinearized = File.createTempFile("deck2pdf", ".pdf");
+                output = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(unlinearized)));
+            } else {
+                output = new CountingOutputStream(out);
+            }
+            PdfWriter writer = PdfWriter.getInstance(document, output);
+            writer.setCompressionLevel(streamCompressionLevel);
+            if (layout != Layout.standard) {
+                // compressed cross-reference and object streams, which require PDF 1.5
+                writer.setFullCompression();
+                // a document receives the same content in all its writers, so this one measures the standard layout
+                standardOutput = new CountingOutputStream(new DiscardingOutputStream());
+                PdfWriter.getInstance(document, standardOutput);
+            }
+        } catch (IOException | DocumentException e) {
+            if (unlinearized != null) {
+                if (output != null) {
+                    try {
+                        output.close();
+                    } catch (IOException ignored) {
+                        // the temporary file is deleted anyway
+                    }
+                }
+                unlinearized.delete();
+            }
+            throw new SlideExportException(e);
+        }
+        document.open();
+        profile.setDocument(document);
+        PdfSlideWriter slideWriter = new PdfSlideWriter(document, encoding, quality, compressionLevel);
+        slideWriter.layout = layout;
+        slideWriter.output = output;
+        slideWriter.standardOutput = standardOutput;
+        slideWriter.target = out;
+        slideWriter.unlinearized = unlinearized;
+        Object qpdf = options.get("qpdf");
+        slideWriter.qpdf = qpdf == null ? "qpdf" : qpdf.toString();
+        return slideWriter;
     }
 
     @Override
     public void writeSlide(final BufferedImage image, final int numSlides, final int current) throws SlideExportException {
         try {
-            com.itextpdf.text.Image image2 =
-                    com.itextpdf.text.Image.getInstance(image, null);
+            long start = System.nanoTime();
+            String digest = FrameDigest.of(image);
+            com.itextpdf.text.Image image2 = embeddedImages.get(digest);
+            if (image2 == null) {
+                image2 = createImage(image, digest, current);
+                embeddedImages.put(digest, image2);
+            } else {
+                // adding the same image instance again makes iText reuse the existing XObject
+                duplicates++;
+            }
+            metrics.recordSince(current, SlideMetrics.Phase.encode, start);
+            start = System.nanoTime();
             double scaler = ((document.getPageSize().getWidth() - document.leftMargin()
                     - document.rightMargin()) / image.getWidth()) * 100;
             image2.scalePercent((float) scaler);
             document.add(image2);
             document.newPage();
+            metrics.recordSince(current, SlideMetrics.Phase.write, start);
+            writeNanos += System.nanoTime() - start;
         } catch (IOException | DocumentException e) {
             throw new SlideExportException(e);
         }
     }
 
     @Override
-    public void close() {
-        document.close();
+    public SlideStrips beginSlide(final int width, final int height, final int numSlides, final int current) {
+        final float scale = (document.getPageSize().getWidth() - document.leftMargin() - document.rightMargin()) / width;
+        final float top = document.getPageSize().getHeight() - document.topMargin();
+        return new SlideStrips() {
+            private int y;
+
+            @Override
+            public void writeStrip(final int[] pixels, final int rows) throws SlideExportException {
+                try {
+                    long start = System.nanoTime();
+                    BufferedImage strip = wrap(pixels, width, rows);
+                    String digest = FrameDigest.of(strip);
+                    com.itextpdf.text.Image image = embeddedImages.get(digest);
+                    if (image == null) {
+                        image = createImage(strip, digest, current);
+                        embeddedImages.put(digest, image);
+                    } else {
+                        duplicates++;
+                    }
+                    metrics.recordSince(current, SlideMetrics.Phase.encode, start);
+                    start = System.nanoTime();
+                    image.scalePercent(scale * 100);
+                    image.setAbsolutePosition(document.leftMargin(), top - (y + rows) * scale);
+                    document.add(image);
+                    metrics.recordSince(current, SlideMetrics.Phase.write, start);
+                    writeNanos += System.nanoTime() - start;
+                    y += rows;
+                } catch (IOException | DocumentException e) {
+                    throw new SlideExportException(e);
+                }
+            }
+
+            @Override
+            public void finish() {
+                document.newPage();
+            }
+        };
+    }
+
+    private com.itextpdf.text.Image createImage(final BufferedImage image, final String digest, final int current) throws IOException, BadElementException {
+        ImageEncoding slideEncoding = encoding == ImageEncoding.auto ? chooseEncoding(image) : encoding;
+        if (slideEncoding == ImageEncoding.flate && colorReduction != null) {
+            return createIndexedImage(image, digest, current);
+        }
+        String settings = slideEncoding == ImageEncoding.dct ? "pdf:dct:" + quality : "pdf:flate:" + compressionLevel;
+        String key = cache == null ? null : cache.key(digest, settings);
+        byte[] bytes = key == null ? null : cache.get(key);
+        if (bytes == null) {
+            bytes = slideEncoding == ImageEncoding.dct ? encodeJpeg(image) : deflate(toRGB(image), compressionLevel);
+            if (key != null) {
+                cache.put(key, bytes);
+            }
+        }
+        encodedSlides.merge(slideEncoding, 1, Integer::sum);
+        encodedBytes.merge(slideEncoding, (long) bytes.length, Long::sum);
+        metrics.addOutputBytes(current, bytes.length);
+        if (slideEncoding == ImageEncoding.dct) {
+            return com.itextpdf.text.Image.getInstance(bytes);
+        }
+        com.itextpdf.text.Image result = com.itextpdf.text.Image.getInstance(image.getWidth(), image.getHeight(), 3, 8, bytes);
+        // the data is already compressed, so iText will only add the FlateDecode filter
+        result.setDeflated(true);
+        return result;
+    }
+
+    /**
+     * Embeds a slide as an indexed image if its colours can be reduced, or as a RGB image otherwise. Cached
+     * entries start with the number of colours minus one and the bit depth, followed by the palette, or with
+     * two zero bytes for RGB images, then the compressed pixels.
+     */
+    private com.itextpdf.text.Image createIndexedImage(final BufferedImage image, final String digest, final int current) throws BadElementException {
+        String key = cache == null ? null : cache.key(digest, "pdf:flate:" + compressionLevel + ":" + colorReduction.getSettings());
+        byte[] bytes = key == null ? null : cache.get(key);
+        if (bytes == null) {
+            ColorReduction.IndexedImage indexed = colorReduction.reduce(image);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            if (indexed != null) {
+                byte[] palette = indexed.getPalette();
+                out.write(indexed.getColorCount() - 1);
+                out.write(indexed.getBitDepth());
+                out.write(palette, 0, palette.length);
+                byte[] data = deflate(indexed.pack(false), compressionLevel);
+                out.write(data, 0, data.length);
+            } else {
+                out.write(0);
+                out.write(0);
+                byte[] data = deflate(toRGB(image), compressionLevel);
+                out.write(data, 0, data.length);
+            }
+            bytes = out.toByteArray();
+            if (key != null) {
+                cache.put(key, bytes);
+            }
+        }
+        int colors = (bytes[0] & 0xFF) + 1;
+        int bitDepth = bytes[1];
+        int header = bitDepth == 0 ? 2 : 2 + 3 * colors;
+        byte[] data = new byte[bytes.length - header];
+        System.arraycopy(bytes, header, data, 0, data.length);
+        ImageEncoding slideEncoding = ImageEncoding.flate;
+        encodedSlides.merge(slideEncoding, 1, Integer::sum);
+        encodedBytes.merge(slideEncoding, (long) data.length, Long::sum);
+        metrics.addOutputBytes(current, bytes.length);
+        com.itextpdf.text.Image result;
+        if (bitDepth == 0) {
+            result = com.itextpdf.text.Image.getInstance(image.getWidth(), image.getHeight(), 3, 8, data);
+        } else {
+            result = com.itextpdf.text.Image.getInstance(image.getWidth(), image.getHeight(), 1, bitDepth, data);
+            byte[] palette = new byte[3 * colors];
+            System.arraycopy(bytes, 2, palette, 0, palette.length);
+            PdfArray colorSpace = new PdfArray();
+            colorSpace.add(PdfName.INDEXED);
+            colorSpace.add(PdfName.DEVICERGB);
+            colorSpace.add(new PdfNumber(colors - 1));
+            colorSpace.add(new PdfString(palette));
+            PdfDictionary additional = new PdfDictionary();
+            additional.put(PdfName.COLORSPACE, colorSpace);
+            result.setAdditional(additional);
+        }
+        result.setDeflated(true);
+        return result;
+    }
+
+    /**
+     * Chooses the encoding of a slide from a sample of its pixels. Slides with many colours and mostly
+     * smooth transitions between neighbour pixels look like photos, and are better encoded as JPEG. Others
+     * have flat areas and sharp edges, like diagrams and text, which are better encoded losslessly.
+     */
+    static ImageEncoding chooseEncoding(final BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        Set<Integer> colors = new HashSet<>();
+        int[] row = new int[width];
+        long pairs = 0;
+        long smooth = 0;
+        long edges = 0;
+        for (int y = 0; y < height; y += SAMPLING_STEP) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            for (int x = 0; x + 1 < width; x += SAMPLING_STEP) {
+                if (colors.size() <= PHOTO_MIN_COLORS) {
+                    colors.add(row[x] & 0xFFFFFF);
+                }
+                int diff = colorDistance(row[x], row[x + 1]);
+                pairs++;
+                if (diff > SMOOTH_MAX_DIFF) {
+                    edges++;
+                } else if (diff > 0) {
+                    smooth++;
+                }
+            }
+        }
+        if (pairs == 0 || colors.size() <= PHOTO_MIN_COLORS) {
+            return ImageEncoding.flate;
+        }
+        double smoothRatio = (double) smooth / pairs;
+        double edgeRatio = (double) edges / pairs;
+        return smoothRatio >= PHOTO_MIN_SMOOTH_RATIO && edgeRatio <= PHOTO_MAX_EDGE_RATIO ? ImageEncoding.dct : ImageEncoding.flate;
+    }
+
+    private static int colorDistance(final int a, final int b) {
+        return Math.abs(((a >> 16) & 0xFF) - ((b >> 16) & 0xFF))
+                + Math.abs(((a >> 8) & 0xFF) - ((b >> 8) & 0xFF))
+                + Math.abs((a & 0xFF) - (b & 0xFF));
+    }
+
+    private byte[] encodeJpeg(final BufferedImage image) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        jpegEncoder.encode(image, out);
+        return out.toByteArray();
+    }
+
+    private static byte[] toRGB(final BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        byte[] rgb = new byte[3 * width * height];
+        int[] row = new int[width];
+        int idx = 0;
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            for (int x = 0; x < width; x++) {
+                int pixel = row[x];
+                rgb[idx++] = (byte) (pixel >> 16);
+                rgb[idx++] = (byte) (pixel >> 8);
+                rgb[idx++] = (byte) pixel;
+            }
+        }
+        return rgb;
+    }
+
+    private static byte[] deflate(final byte[] data, final int level) {
+        Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4);
+            byte[] buffer = new byte[64 * 1024];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @Override
+    public void close() throws SlideExportException {
+        try {
+            super.close();
+            jpegEncoder.dispose();
+            for (Map.Entry<ImageEncoding, Integer> entry : encodedSlides.entrySet()) {
+                System.out.printf("Embedded %d slide image%s as %s (%d bytes)%n",
+                        entry.getValue(), entry.getValue() > 1 ? "s" : "", entry.getKey(), encodedBytes.get(entry.getKey()));
+            }
+            if (duplicates > 0) {
+                System.out.printf("Reused %d duplicate slide image%s%n", duplicates, duplicates > 1 ? "s" : "");
+            }
+            long start = System.nanoTime();
+            document.close();
+            writeNanos += System.nanoTime() - start;
+            if (output != null) {
+                if (standardOutput != null) {
+                    System.out.printf("Wrote %s PDF document in %d ms (%d bytes, %d bytes saved compared with the standard layout)%n",
+                            layout, writeNanos / 1_000_000, output.count, standardOutput.count - output.count);
+                } else {
+                    System.out.printf("Wrote %s PDF document in %d ms (%d bytes)%n", layout, writeNanos / 1_000_000, output.count);
+                }
+            }
+            if (unlinearized != null) {
+                linearize();
+            }
+        } catch (IOException e) {
+            throw new SlideExportException(e);
+        } finally {
+            // also deleted if writing or copying the document failed
+            if (unlinearized != null) {
+                unlinearized.delete();
+            }
+        }
+    }
+
+    /**
+     * Linearizes the document with qpdf, and copies the result to the target stream. If qpdf is not available,
+     * the document is copied as is.
+     */
+    private void linearize() throws IOException {
+        long start = System.nanoTime();
+        File linearized = new File(unlinearized.getPath() + ".web");
+        try {
+            boolean done = false;
+            try {
+                Process process = new ProcessBuilder(qpdf, "--linearize", "--object-streams=generate",
+                        unlinearized.getPath(), linearized.getPath()).redirectErrorStream(true).start();
+                ByteArrayOutputStream messages = new ByteArrayOutputStream();
+                try (InputStream in = process.getInputStream()) {
+                    byte[] buffer = new byte[8192];
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        messages.write(buffer, 0, read);
+                    }
+                }
+                // 3 means that qpdf succeeded with warnings
+                int exit = process.waitFor();
+                done = (exit == 0 || exit == 3) && linearized.isFile();
+                if (!done) {
+                    System.err.println("Unable to linearize PDF document: " + messages.toString().trim());
+                }
+            } catch (IOException e) {
+                System.err.println("Unable to run " + qpdf + ", the PDF document is not linearized: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+            try (OutputStream out = target) {
+                Files.copy((done ? linearized : unlinearized).toPath(), out);
+            }
+            if (done) {
+                System.out.printf("Linearized PDF document for fast web view in %d ms (%d bytes, %+d bytes, %d bytes saved compared with the standard layout)%n",
+                        (System.nanoTime() - start) / 1_000_000, linearized.length(), linearized.length() - unlinearized.length(),
+                        standardOutput.count - linearized.length());
+            }
+        } finally {
+            linearized.delete();
+        }
+    }
+
+    /**
+     * Counts the bytes of the document.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        private CountingOutputStream(final OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    /**
+     * Discards the bytes of a document which is only written to be measured.
+     */
+    private static class DiscardingOutputStream extends OutputStream {
+        @Override
+        public void write(final int b) {
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+        }
     }
 }
@@ -0,0 +1,411 @@
+/*
+ * Copyright 2003-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.champeau.deck2pdf.writer;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A PNG encoder for opaque RGB images, with a configurable compression level and filter strategy.
+ * <p/>
+ * Large images are split into strips of rows which are filtered and compressed in parallel, the same way
+ * <code>pigz</code> does: each strip is compressed as raw deflate data, primed with the last 32KB of the
+ * previous strip so that compression ratio is barely affected, and flushed to a byte boundary. The strips
+ * are then concatenated into a single zlib stream, so the result is a regular PNG file.
+ * <p/>
+ * Very large images can also be encoded as they are captured, strip after strip, with {@link #begin(OutputStream, int, int)},
+ * so that the whole image never needs to be in memory.
+ * <p/>
+ * With a {@link ColorReduction}, images which can be indexed are written as palette images, with 1 to 8 bits per
+ * pixel, instead of RGB images.
+ *
+ * @author Cédric Champeau
+ */
+public class PngEncoder implements ImageEncoder {
+    private static final byte[] SIGNATURE = {(byte) 137, 80, 78, 71, 13, 10, 26, 10};
+    private static final int BYTES_PER_PIXEL = 3;
+    private static final int WINDOW_SIZE = 32 * 1024;
+    private static final int MIN_ROWS_PER_STRIP = 64;
+    private static final int MAX_CHUNK_SIZE = 1024 * 1024;
+
+    public enum Filter {
+        none,
+        sub,
+        up,
+        average,
+        paeth,
+        adaptive
+    }
+
+    private final int level;
+    private final Filter filter;
+    private final int strips;
+    private final Executor executor;
+    private ColorReduction colorReduction;
+
+    /**
+     * Creates a PNG encoder.
+     * @param level the deflate compression level, from 0 to 9, or -1 for the default level
+     * @param filter the filter strategy
+     * @param strips the maximum number of strips compressed in parallel for a single image
+     */
+    public PngEncoder(final int level, final Filter filter, final int strips) {
+        this(level, filter, strips, ForkJoinPool.commonPool());
+    }
+
+    public PngEncoder(final int level, final Filter filter, final int strips, final Executor executor) {
+        this.level = level;
+        this.filter = filter;
+        this.strips = Math.max(1, strips);
+        this.executor = executor;
+    }
+
+    /**
+     * Sets the colour reduction applied to images before they are encoded.
+     * @param colorReduction the colour reduction, or null to always encode RGB images
+     */
+    public void setColorReduction(final ColorReduction colorReduction) {
+        this.colorReduction = colorReduction;
+    }
+
+    /**
+     * Returns a description of the settings of this encoder, which determine the encoded bytes.
+     * @return the encoding settings
+     */
+    @Override
+    public String getSettings() {
+        return "png:" + level + ":" + filter + ":" + strips + (colorReduction == null ? "" : ":" + colorReduction.getSettings());
+    }
+
+    @Override
+    public void encode(final BufferedImage image, final OutputStream out) throws IOException {
+        ColorReduction.IndexedImage indexed = colorReduction == null ? null : colorReduction.reduce(image);
+        if (indexed != null) {
+            encode(indexed, out);
+            return;
+        }
+        DataOutputStream data = writeHeader(out, image.getWidth(), image.getHeight(), 8, 2);
+        byte[] compressed = compress(image);
+        for (int offset = 0; offset < compressed.length; offset += MAX_CHUNK_SIZE) {
+            writeChunk(data, "IDAT", compressed, offset, Math.min(MAX_CHUNK_SIZE, compressed.length - offset));
+        }
+        writeChunk(data, "IEND", new byte[0], 0, 0);
+        data.flush();
+    }
+
+    /**
+     * Starts encoding an image which is received as strips of rows, from top to bottom.
+     * @param out the stream the encoded image is written to
+     * @param width the width of the image
+     * @param height the height of the image
+     * @return the encoder of the strips
+     * @throws IOException if the header cannot be written
+     */
+    public StripEncoder begin(final OutputStream out, final int width, final int height) throws IOException {
+        return new StripEncoder(writeHeader(out, width, height, 8, 2), width);
+    }
+
+    /**
+     * Encodes an indexed image as a palette PNG image. Rows are not filtered, as recommended for palette images,
+     * and compressed as a single stream, since indexed images are small.
+     */
+    private void encode(final ColorReduction.IndexedImage image, final OutputStream out) throws IOException {
+        DataOutputStream data = writeHeader(out, image.getWidth(), image.getHeight(), image.getBitDepth(), 3);
+        byte[] palette = image.getPalette();
+        writeChunk(data, "PLTE", palette, 0, palette.length);
+        Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(image.pack(true));
+            deflater.finish();
+            byte[] buffer = new byte[MAX_CHUNK_SIZE];
+            while (!deflater.finished()) {
+                int length = deflater.deflate(buffer);
+                if (length > 0) {
+                    writeChunk(data, "IDAT", buffer, 0, length);
+                }
+            }
+        } finally {
+            deflater.end();
+        }
+        writeChunk(data, "IEND", new byte[0], 0, 0);
+        data.flush();
+    }
+
+    private static DataOutputStream writeHeader(final OutputStream out, final int width, final int height, final int bitDepth, final int colorType) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.write(SIGNATURE);
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+        DataOutputStream ihdr = new DataOutputStream(header);
+        ihdr.writeInt(width);
+        ihdr.writeInt(height);
+        ihdr.writeByte(bitDepth);
+        ihdr.writeByte(colorType); // 2 for RGB, 3 for palette
+        ihdr.writeByte(0); // compression method
+        ihdr.writeByte(0); // filter method
+        ihdr.writeByte(0); // interlace method
+        writeChunk(data, "IHDR", header.toByteArray(), 0, header.size());
+        return data;
+    }
+
+    private byte[] compress(final BufferedImage image) throws IOException {
+        int height = image.getHeight();
+        int stripCount = Math.max(1, Math.min(strips, height / MIN_ROWS_PER_STRIP));
+        int rowsPerStrip = (height + stripCount - 1) / stripCount;
+        List<CompletableFuture<byte[]>> filtered = new ArrayList<>();
+        for (int y = 0; y < height; y += rowsPerStrip) {
+            final int first = y;
+            final int last = Math.min(height, y + rowsPerStrip);
+            filtered.add(CompletableFuture.supplyAsync(() -> filterRows(image, first, last), executor));
+        }
+        List<CompletableFuture<byte[]>> deflated = new ArrayList<>();
+        for (int i = 0; i < filtered.size(); i++) {
+            final boolean lastStrip = i == filtered.size() - 1;
+            CompletableFuture<byte[]> previous = i == 0 ? CompletableFuture.completedFuture(null) : filtered.get(i - 1);
+            deflated.add(filtered.get(i).thenCombineAsync(previous, (strip, dictionary) -> deflate(strip, dictionary, lastStrip), executor));
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int flevel = level < 0 || level == 6 ? 2 : level < 2 ? 0 : level < 6 ? 1 : 3;
+        int cmf = 0x78; // deflate, 32KB window
+        int flg = flevel << 6;
+        flg += (31 - ((cmf << 8) + flg) % 31) % 31;
+        out.write(cmf);
+        out.write(flg);
+        Adler32 adler = new Adler32();
+        try {
+            for (int i = 0; i < filtered.size(); i++) {
+                adler.update(filtered.get(i).join());
+                out.write(deflated.get(i).join());
+            }
+        } catch (CompletionException e) {
+            throw new IOException("Unable to compress PNG image", e.getCause());
+        }
+        long checksum = adler.getValue();
+        out.write((int) (checksum >>> 24));
+        out.write((int) (checksum >>> 16));
+        out.write((int) (checksum >>> 8));
+        out.write((int) checksum);
+        return out.toByteArray();
+    }
+
+    private byte[] deflate(final byte[] strip, final byte[] previous, final boolean lastStrip) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            if (previous != null) {
+                int length = Math.min(WINDOW_SIZE, previous.length);
+                deflater.setDictionary(previous, previous.length - length, length);
+            }
+            deflater.setInput(strip);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(strip.length / 4 + 64);
+            byte[] buffer = new byte[64 * 1024];
+            if (lastStrip) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    out.write(buffer, 0, deflater.deflate(buffer));
+                }
+            } else {
+                // a sync flush ends the strip on a byte boundary, without marking the last block
+                int count;
+                do {
+                    count = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    out.write(buffer, 0, count);
+                } while (count == buffer.length);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private byte[] filterRows(final BufferedImage image, final int first, final int last) {
+        byte[] prior = new byte[BYTES_PER_PIXEL * image.getWidth()];
+        if (first > 0) {
+            toBytes(image, first - 1, new int[image.getWidth()], prior);
+        }
+        return filterRows(image, first, last, prior);
+    }
+
+    /**
+     * Filters rows of an image.
+     * @param prior the bytes of the row above the first one, which are all zero for the first row of the image
+     */
+    private byte[] filterRows(final BufferedImage image, final int first, final int last, final byte[] prior) {
+        int width = image.getWidth();
+        int stride = BYTES_PER_PIXEL * width;
+        byte[] result = new byte[(last - first) * (stride + 1)];
+        int[] pixels = new int[width];
+        byte[] previous = prior.clone();
+        byte[] current = new byte[stride];
+        byte[][] candidates = filter == Filter.adaptive ? new byte[Filter.adaptive.ordinal()][stride] : null;
+        int offset = 0;
+        for (int y = first; y < last; y++) {
+            toBytes(image, y, pixels, current);
+            if (filter == Filter.adaptive) {
+                int best = 0;
+                long bestSum = Long.MAX_VALUE;
+                for (int type = 0; type < candidates.length; type++) {
+                    applyFilter(type, current, previous, candidates[type], 0);
+                    long sum = 0;
+                    for (byte b : candidates[type]) {
+                        sum += Math.abs((int) b);
+                    }
+                    if (sum < bestSum) {
+                        bestSum = sum;
+                        best = type;
+                    }
+                }
+                result[offset] = (byte) best;
+                System.arraycopy(candidates[best], 0, result, offset + 1, stride);
+            } else {
+                result[offset] = (byte) filter.ordinal();
+                applyFilter(filter.ordinal(), current, previous, result, offset + 1);
+            }
+            offset += stride + 1;
+            byte[] tmp = previous;
+            previous = current;
+            current = tmp;
+        }
+        return result;
+    }
+
+    private static void toBytes(final BufferedImage image, final int y, final int[] pixels, final byte[] row) {
+        image.getRGB(0, y, pixels.length, 1, pixels, 0, pixels.length);
+        for (int x = 0, i = 0; x < pixels.length; x++) {
+            int pixel = pixels[x];
+            row[i++] = (byte) (pixel >> 16);
+            row[i++] = (byte) (pixel >> 8);
+            row[i++] = (byte) pixel;
+        }
+    }
+
+    private static void applyFilter(final int type, final byte[] row, final byte[] prior, final byte[] out, final int offset) {
+        for (int i = 0; i < row.length; i++) {
+            int raw = row[i] & 0xFF;
+            int left = i >= BYTES_PER_PIXEL ? row[i - BYTES_PER_PIXEL] & 0xFF : 0;
+            int up = prior[i] & 0xFF;
+            int upLeft = i >= BYTES_PER_PIXEL ? prior[i - BYTES_PER_PIXEL] & 0xFF : 0;
+            int predictor;
+            switch (type) {
+                case 1:
+                    predictor = left;
+                    break;
+                case 2:
+                    predictor = up;
+                    break;
+                case 3:
+                    predictor = (left + up) >>> 1;
+                    break;
+                case 4:
+                    predictor = paeth(left, up, upLeft);
+                    break;
+                default:
+                    predictor = 0;
+            }
+            out[offset + i] = (byte) (raw - predictor);
+        }
+    }
+
+    private static int paeth(final int a, final int b, final int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) {
+            return a;
+        }
+        return pb <= pc ? b : c;
+    }
+
+    private static void writeChunk(final DataOutputStream out, final String type, final byte[] data, final int offset, final int length) throws IOException {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, offset, length);
+        out.writeInt(length);
+        out.write(typeBytes);
+        out.write(data, offset, length);
+        out.writeInt((int) crc.getValue());
+    }
+
+    /**
+     * Encodes an image strip after strip. Strips are filtered using the last row of the previous strip, and
+     * compressed into a single zlib stream, which is written as IDAT chunks as soon as compressed data is available.
+     */
+    public final class StripEncoder {
+        private final DataOutputStream out;
+        private final int width;
+        private final Deflater deflater = new Deflater(level);
+        private final byte[] buffer = new byte[64 * 1024];
+        private final byte[] prior;
+
+        private StripEncoder(final DataOutputStream out, final int width) {
+            this.out = out;
+            this.width = width;
+            this.prior = new byte[BYTES_PER_PIXEL * width];
+        }
+
+        /**
+         * Encodes the next rows of the image.
+         * @param strip the rows, as an image with the width of the encoded image
+         * @throws IOException if the rows cannot be written
+         */
+        public void writeRows(final BufferedImage strip) throws IOException {
+            int rows = strip.getHeight();
+            deflater.setInput(filterRows(strip, 0, rows, prior));
+            while (!deflater.needsInput()) {
+                writeData(deflater.deflate(buffer));
+            }
+            toBytes(strip, rows - 1, new int[width], prior);
+        }
+
+        /**
+         * Completes the image. The output stream is flushed, but not closed.
+         * @throws IOException if the image cannot be written
+         */
+        public void finish() throws IOException {
+            try {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    writeData(deflater.deflate(buffer));
+                }
+                writeChunk(out, "IEND", new byte[0], 0, 0);
+                out.flush();
+            } finally {
+                deflater.end();
+            }
+        }
+
+        private void writeData(final int length) throws IOException {
+            if (length > 0) {
+                writeChunk(out, "IDAT", buffer, 0, length);
+            }
+        }
+    }
+}
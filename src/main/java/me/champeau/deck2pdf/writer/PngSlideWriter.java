@@ -0,0 +1,99 @@
+/*
+ * Copyright 2003-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.champeau.deck2pdf.writer;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes each slide as a PNG file, using a {@link PngEncoder} which lets the compression level and
+ * filter strategy be configured, and compresses strips of large slides in parallel. Slides captured in tiles
+ * are encoded strip after strip, as they are received.
+ */
+public class PngSlideWriter extends MultiFileSlideWriter {
+    private final PngEncoder encoder;
+
+    public PngSlideWriter(String exportFile, PngEncoder encoder, int threads) {
+        super(exportFile, threads);
+        this.encoder = encoder;
+    }
+
+    @Override
+    protected void writeImage(final BufferedImage export, final OutputStream out) throws IOException {
+        encoder.encode(export, out);
+    }
+
+    @Override
+    protected String getEncodingSettings() {
+        return encoder.getSettings();
+    }
+
+    @Override
+    public SlideStrips beginSlide(final int width, final int height, final int numSlides, final int current) throws SlideExportException {
+        final File file = getOutputFile(numSlides, current);
+        try {
+            final OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+            final PngEncoder.StripEncoder png;
+            try {
+                png = encoder.begin(out, width, height);
+            } catch (IOException e) {
+                out.close();
+                throw e;
+            }
+            return new SlideStrips() {
+                @Override
+                public void writeStrip(final int[] pixels, final int rows) throws SlideExportException {
+                    long start = System.nanoTime();
+                    try {
+                        png.writeRows(wrap(pixels, width, rows));
+                    } catch (IOException e) {
+                        closeQuietly(out);
+                        throw new SlideExportException(e);
+                    }
+                    metrics.recordSince(current, SlideMetrics.Phase.encode, start);
+                }
+
+                @Override
+                public void finish() throws SlideExportException {
+                    long start = System.nanoTime();
+                    try {
+                        png.finish();
+                        out.close();
+                    } catch (IOException e) {
+                        closeQuietly(out);
+                        throw new SlideExportException(e);
+                    }
+                    metrics.recordSince(current, SlideMetrics.Phase.write, start);
+                    metrics.addOutputBytes(current, file.length());
+                }
+            };
+        } catch (IOException e) {
+            throw new SlideExportException(e);
+        }
+    }
+
+    private static void closeQuietly(final OutputStream out) {
+        try {
+            out.close();
+        } catch (IOException e) {
+            // the original failure is reported
+        }
+    }
+}
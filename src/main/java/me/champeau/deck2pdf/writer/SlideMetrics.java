@@ -0,0 +1,287 @@
+/*
+ * Copyright 2003-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.champeau.deck2pdf.writer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Collects the time spent by each slide in every phase of the export, from waiting for the slide to
+ * settle to writing the encoded image, as well as the number of bytes written for each slide. Phases
+ * may be recorded from any thread.
+ * <p/>
+ * Every recorded phase is also emitted as a <code>me.champeau.deck2pdf.SlidePhase</code> Flight Recorder
+ * event, if the JVM supports it. A report, with one row per slide and p50/p95/max summaries, can be written
+ * as JSON or CSV at the end of the export, using the <code>--metrics=report.json</code> command line option.
+ *
+ * @author Cédric Champeau
+ */
+public class SlideMetrics {
+    public enum Phase {
+        wait,
+        navigate,
+        snapshot,
+        pixels,
+        encode,
+        write
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+
+    private final ConcurrentSkipListMap<Integer, Row> rows = new ConcurrentSkipListMap<>();
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private final AtomicLong heapHighWaterMark = new AtomicLong();
+    private final long start = System.nanoTime();
+    private volatile long end;
+
+    /**
+     * Records the time spent by a slide in a phase. Several records of the same phase are added.
+     * @param slide the slide number
+     * @param phase the phase
+     * @param nanos the elapsed time, in nanoseconds
+     */
+    public void record(final int slide, final Phase phase, final long nanos) {
+        row(slide).phases.addAndGet(phase.ordinal(), nanos);
+        SlidePhaseEvent.emit(slide, phase.name(), nanos);
+        heapHighWaterMark.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max);
+    }
+
+    /**
+     * Records the time elapsed since a phase started.
+     * @param slide the slide number
+     * @param phase the phase
+     * @param startNanos the value of {@link System#nanoTime()} when the phase started
+     */
+    public void recordSince(final int slide, final Phase phase, final long startNanos) {
+        record(slide, phase, System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Adds to the number of bytes written for a slide.
+     * @param slide the slide number
+     * @param bytes the number of bytes
+     */
+    public void addOutputBytes(final int slide, final long bytes) {
+        row(slide).outputBytes.addAndGet(bytes);
+    }
+
+    /**
+     * Marks the end of the export. The total export time is measured from the creation of this object.
+     */
+    public void stop() {
+        end = System.nanoTime();
+    }
+
+    /**
+     * Returns the number of slides for which phases were recorded.
+     */
+    public int getSlideCount() {
+        return rows.size();
+    }
+
+    /**
+     * Returns the total number of bytes written for all slides.
+     */
+    public long getOutputBytes() {
+        return totalOutputBytes();
+    }
+
+    private Row row(final int slide) {
+        return rows.computeIfAbsent(slide, key -> new Row());
+    }
+
+    public void printSummary() {
+        System.out.printf(Locale.ROOT, "Phase timings over %d slides (p50/p95/max):%n", rows.size());
+        for (Phase phase : PHASES) {
+            long[] values = values(phase);
+            System.out.printf(Locale.ROOT, "  %-8s %8.1f ms %8.1f ms %8.1f ms%n", phase,
+                    millis(percentile(values, 50)), millis(percentile(values, 95)), millis(percentile(values, 100)));
+        }
+        System.out.printf(Locale.ROOT, "Wrote %d bytes, heap high-water mark %d MB%n", totalOutputBytes(), heapHighWaterMark.get() / (1024 * 1024));
+    }
+
+    /**
+     * Writes the report, as CSV if the file name ends with <code>.csv</code>, or as JSON otherwise.
+     * @param file the report file
+     * @throws IOException if the report cannot be written
+     */
+    public void writeReport(final File file) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            Files.createDirectories(parent.toPath());
+        }
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8))) {
+            if (file.getName().toLowerCase().endsWith(".csv")) {
+                writeCsv(out);
+            } else {
+                writeJson(out);
+            }
+        }
+    }
+
+    private void writeCsv(final PrintWriter out) {
+        out.print("slide");
+        for (Phase phase : PHASES) {
+            out.print("," + phase + "Millis");
+        }
+        out.println(",totalMillis,outputBytes");
+        for (Map.Entry<Integer, Row> entry : rows.entrySet()) {
+            Row row = entry.getValue();
+            out.print(entry.getKey());
+            for (Phase phase : PHASES) {
+                out.printf(Locale.ROOT, ",%.3f", millis(row.phases.get(phase.ordinal())));
+            }
+            out.printf(Locale.ROOT, ",%.3f,%d%n", millis(row.total()), row.outputBytes.get());
+        }
+        // summaries use the same columns, with the statistic in place of the slide number
+        for (int percentile : new int[]{50, 95, 100}) {
+            out.print(percentile == 100 ? "max" : "p" + percentile);
+            for (Phase phase : PHASES) {
+                out.printf(Locale.ROOT, ",%.3f", millis(percentile(values(phase), percentile)));
+            }
+            out.printf(Locale.ROOT, ",%.3f,%d%n", millis(percentile(totals(), percentile)), percentile(outputBytes(), percentile));
+        }
+    }
+
+    private void writeJson(final PrintWriter out) {
+        out.println("{");
+        out.printf(Locale.ROOT, "  \"elapsedMillis\": %.3f,%n", millis((end == 0 ? System.nanoTime() : end) - start));
+        out.printf(Locale.ROOT, "  \"outputBytes\": %d,%n", totalOutputBytes());
+        out.printf(Locale.ROOT, "  \"heapHighWaterMarkBytes\": %d,%n", heapHighWaterMark.get());
+        out.println("  \"summary\": {");
+        for (int i = 0; i < PHASES.length; i++) {
+            writeJsonSummary(out, PHASES[i].name() + "Millis", values(PHASES[i]), true);
+            out.println(",");
+        }
+        writeJsonSummary(out, "totalMillis", totals(), true);
+        out.println(",");
+        writeJsonSummary(out, "outputBytes", outputBytes(), false);
+        out.println();
+        out.println("  },");
+        out.println("  \"slides\": [");
+        int count = 0;
+        for (Map.Entry<Integer, Row> entry : rows.entrySet()) {
+            Row row = entry.getValue();
+            out.printf(Locale.ROOT, "    {\"slide\": %d", entry.getKey());
+            for (Phase phase : PHASES) {
+                out.printf(Locale.ROOT, ", \"%sMillis\": %.3f", phase, millis(row.phases.get(phase.ordinal())));
+            }
+            out.printf(Locale.ROOT, ", \"totalMillis\": %.3f, \"outputBytes\": %d}%s%n", millis(row.total()), row.outputBytes.get(),
+                    ++count < rows.size() ? "," : "");
+        }
+        out.println("  ]");
+        out.println("}");
+    }
+
+    private static void writeJsonSummary(final PrintWriter out, final String name, final long[] values, final boolean time) {
+        out.printf(Locale.ROOT, "    \"%s\": {", name);
+        String separator = "";
+        for (int percentile : new int[]{50, 95, 100}) {
+            long value = percentile(values, percentile);
+            out.print(separator + "\"" + (percentile == 100 ? "max" : "p" + percentile) + "\": ");
+            if (time) {
+                out.printf(Locale.ROOT, "%.3f", millis(value));
+            } else {
+                out.print(value);
+            }
+            separator = ", ";
+        }
+        out.print("}");
+    }
+
+    private long[] values(final Phase phase) {
+        List<Long> values = new ArrayList<>(rows.size());
+        for (Row row : rows.values()) {
+            values.add(row.phases.get(phase.ordinal()));
+        }
+        return toSortedArray(values);
+    }
+
+    private long[] totals() {
+        List<Long> values = new ArrayList<>(rows.size());
+        for (Row row : rows.values()) {
+            values.add(row.total());
+        }
+        return toSortedArray(values);
+    }
+
+    private long[] outputBytes() {
+        List<Long> values = new ArrayList<>(rows.size());
+        for (Row row : rows.values()) {
+            values.add(row.outputBytes.get());
+        }
+        return toSortedArray(values);
+    }
+
+    private long totalOutputBytes() {
+        long total = 0;
+        for (Row row : rows.values()) {
+            total += row.outputBytes.get();
+        }
+        return total;
+    }
+
+    private static long[] toSortedArray(final List<Long> values) {
+        long[] result = new long[values.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = values.get(i);
+        }
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     * Returns the nearest-rank percentile of sorted values.
+     */
+    private static long percentile(final long[] sorted, final int percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    private static double millis(final long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    private static class Row {
+        private final AtomicLongArray phases = new AtomicLongArray(PHASES.length);
+        private final AtomicLong outputBytes = new AtomicLong();
+
+        private long total() {
+            long total = 0;
+            for (int i = 0; i < phases.length(); i++) {
+                total += phases.get(i);
+            }
+            return total;
+        }
+    }
+}
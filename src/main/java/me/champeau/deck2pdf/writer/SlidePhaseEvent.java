@@ -0,0 +1,102 @@
+/*
+ * Copyright 2003-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.champeau.deck2pdf.writer;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Emits a Flight Recorder event for each phase of the export of a slide. The event type is defined at runtime
+ * with <code>jdk.jfr.EventFactory</code>, through reflection, so that deck2pdf still compiles and runs on JDK 8
+ * builds which don't provide the <code>jdk.jfr</code> API: events are then simply not emitted.
+ * <p/>
+ * Phases are measured before the event is created, so the elapsed time is carried by the <code>elapsed</code>
+ * field rather than by the duration of the event.
+ *
+ * @author Cédric Champeau
+ */
+final class SlidePhaseEvent {
+    private static final SlidePhaseEvent INSTANCE = create();
+
+    private final Object factory;
+    private final Method newEvent;
+    private final Method isEnabled;
+    private final Method set;
+    private final Method commit;
+
+    private SlidePhaseEvent(final Object factory, final Method newEvent, final Method isEnabled, final Method set, final Method commit) {
+        this.factory = factory;
+        this.newEvent = newEvent;
+        this.isEnabled = isEnabled;
+        this.set = set;
+        this.commit = commit;
+    }
+
+    /**
+     * Emits an event, if the JVM provides the Flight Recorder API and the event is enabled.
+     */
+    static void emit(final int slide, final String phase, final long elapsed) {
+        if (INSTANCE != null) {
+            INSTANCE.commit(slide, phase, elapsed);
+        }
+    }
+
+    private void commit(final int slide, final String phase, final long elapsed) {
+        try {
+            Object event = newEvent.invoke(factory);
+            if ((Boolean) isEnabled.invoke(event)) {
+                set.invoke(event, 0, slide);
+                set.invoke(event, 1, phase);
+                set.invoke(event, 2, elapsed);
+                commit.invoke(event);
+            }
+        } catch (ReflectiveOperationException e) {
+            // events are only a diagnostic aid, they never fail the export
+        }
+    }
+
+    private static SlidePhaseEvent create() {
+        ClassLoader loader = SlidePhaseEvent.class.getClassLoader();
+        try {
+            Class<?> annotationElement = Class.forName("jdk.jfr.AnnotationElement", false, loader);
+            Class<?> valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor", false, loader);
+            Class<?> eventFactory = Class.forName("jdk.jfr.EventFactory", false, loader);
+            Class<?> event = Class.forName("jdk.jfr.Event", false, loader);
+            Constructor<?> annotation = annotationElement.getConstructor(Class.class, Object.class);
+            Constructor<?> field = valueDescriptor.getConstructor(Class.class, String.class, List.class);
+            Class<?> label = Class.forName("jdk.jfr.Label", false, loader);
+            List<Object> annotations = Arrays.asList(
+                    annotation.newInstance(Class.forName("jdk.jfr.Name", false, loader), "me.champeau.deck2pdf.SlidePhase"),
+                    annotation.newInstance(label, "Slide Phase"),
+                    annotation.newInstance(Class.forName("jdk.jfr.Category", false, loader), new String[]{"deck2pdf"}),
+                    annotation.newInstance(Class.forName("jdk.jfr.Description", false, loader), "Time spent by a slide in a phase of the export"));
+            List<Object> fields = Arrays.asList(
+                    field.newInstance(int.class, "slide", Collections.singletonList(annotation.newInstance(label, "Slide"))),
+                    field.newInstance(String.class, "phase", Collections.singletonList(annotation.newInstance(label, "Phase"))),
+                    field.newInstance(long.class, "elapsed", Arrays.asList(
+                            annotation.newInstance(label, "Elapsed"),
+                            annotation.newInstance(Class.forName("jdk.jfr.Timespan", false, loader), "NANOSECONDS"))));
+            Object factory = eventFactory.getMethod("create", List.class, List.class).invoke(null, annotations, fields);
+            return new SlidePhaseEvent(factory, eventFactory.getMethod("newEvent"), event.getMethod("isEnabled"),
+                    event.getMethod("set", int.class, Object.class), event.getMethod("commit"));
+        } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2003-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.champeau.deck2pdf.writer;
+
+/**
+ * Receives a slide as horizontal strips of rows, from top to bottom, as returned by
+ * {@link SlideWriter#beginSlide(int, int, int, int)}. This is used for very large slides, which are captured
+ * in tiles, so that the whole slide doesn't need to be in memory.
+ */
+public interface SlideStrips {
+    /**
+     * Writes the next strip of the slide. The buffer may be reused by the caller once this method returns.
+     * @param pixels the pixels of the strip, in ARGB format, row by row, with the width of the slide
+     * @param rows the number of rows of the strip
+     * @throws SlideExportException if the strip cannot be written
+     */
+    void writeStrip(int[] pixels, int rows) throws SlideExportException;
+
+    /**
+     * Completes the slide, once every strip has been written.
+     * @throws SlideExportException if the slide cannot be written
+     */
+    void finish() throws SlideExportException;
+}
@@ -15,21 +15,25 @@
  */
 package me.champeau.deck2pdf.writer;
 
-import com.itextpdf.text.Document;
-import com.itextpdf.text.DocumentException;
-import com.itextpdf.text.Rectangle;
-import com.itextpdf.text.pdf.PdfWriter;
 import me.champeau.deck2pdf.Profile;
 
 import java.awt.image.BufferedImage;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Map;
+import java.util.zip.Deflater;
 
 public abstract class SlideWriter {
     private enum ExportFormat {
         pdf,
         png,
         jpeg,
+        zip,
+        tiff,
         unknown;
 
         public boolean isPdf() {
@@ -44,6 +48,14 @@ public abstract class SlideWriter {
             return this == png;
         }
 
+        public boolean isZip() {
+            return this == zip;
+        }
+
+        public boolean isTiff() {
+            return this == tiff;
+        }
+
         static ExportFormat of(String fileName) {
             String fn = fileName.toLowerCase();
             if (fn.endsWith(".pdf")) {
@@ -55,32 +67,262 @@ public abstract class SlideWriter {
             if (fn.endsWith(".jpeg") || fn.endsWith(".jpg")) {
                 return jpeg;
             }
+            if (fn.endsWith(".zip")) {
+                return zip;
+            }
+            if (fn.endsWith(".tiff") || fn.endsWith(".tif")) {
+                return tiff;
+            }
             return unknown;
         }
     }
 
+    protected EncodedFrameCache cache;
+    protected ColorReduction colorReduction;
+    protected SlideMetrics metrics = new SlideMetrics();
+
     public abstract void writeSlide(BufferedImage export, final int numSlides, final int current) throws SlideExportException;
 
-    public void close() {
+    /**
+     * Writes a slide from a raw pixel buffer. The alpha channel of the pixels is ignored. The buffer
+     * may be reused by the caller once this method returns, so implementations must not keep a reference
+     * to it. By default, the buffer is wrapped, without copy, into an opaque {@link BufferedImage}.
+     * @param pixels the pixels of the slide, in ARGB format, row by row
+     * @param width the width of the slide
+     * @param height the height of the slide
+     * @param numSlides the total number of slides, or -1 if unknown
+     * @param current the slide number
+     * @throws SlideExportException if the slide cannot be written
+     */
+    public void writeSlide(final int[] pixels, final int width, final int height, final int numSlides, final int current) throws SlideExportException {
+        writeSlide(wrap(pixels, width, height), numSlides, current);
+    }
+
+    /**
+     * Writes a slide from a raw pixel buffer, taking ownership of the buffer: the release action is called once
+     * the writer no longer uses it, which may be after this method returns for writers which encode slides
+     * asynchronously. This lets the caller recycle the buffer without copying it. By default, the slide is
+     * written with {@link #writeSlide(int[], int, int, int, int)}, then the buffer is released.
+     * @param pixels the pixels of the slide, in ARGB format, row by row
+     * @param width the width of the slide
+     * @param height the height of the slide
+     * @param numSlides the total number of slides, or -1 if unknown
+     * @param current the slide number
+     * @param release the action called once the buffer is no longer used, from any thread. It may not be called
+     * if writing the slide fails.
+     * @throws SlideExportException if the slide cannot be written
+     */
+    public void writeSlide(final int[] pixels, final int width, final int height, final int numSlides, final int current, final Runnable release) throws SlideExportException {
+        try {
+            writeSlide(pixels, width, height, numSlides, current);
+        } finally {
+            release.run();
+        }
+    }
+
+    /**
+     * Starts writing a slide which is received as horizontal strips. By default, strips are copied into a
+     * full frame, which is written with {@link #writeSlide(int[], int, int, int, int)} once complete, so slides
+     * whose frame would take more than a quarter of the maximum heap size are rejected. Writers which can write
+     * strips as they come override this method, so that the whole slide is never in memory.
+     * @param width the width of the slide
+     * @param height the height of the slide
+     * @param numSlides the total number of slides, or -1 if unknown
+     * @param current the slide number
+     * @return the receiver of the strips
+     * @throws SlideExportException if the slide cannot be written, or is too large to be assembled in memory
+     */
+    public SlideStrips beginSlide(final int width, final int height, final int numSlides, final int current) throws SlideExportException {
+        long frameBytes = 4L * width * height;
+        if (frameBytes > Runtime.getRuntime().maxMemory() / 4 || frameBytes / 4 > Integer.MAX_VALUE - 8) {
+            throw new SlideExportException(new IllegalArgumentException("Slides of " + width + "x" + height
+                    + " pixels are too large to be assembled in memory for this format: export them to PDF or PNG,"
+                    + " which are written strip by strip, or increase the maximum heap size"));
+        }
+        final int[] frame = new int[width * height];
+        return new SlideStrips() {
+            private int offset;
+
+            @Override
+            public void writeStrip(final int[] pixels, final int rows) {
+                System.arraycopy(pixels, 0, frame, offset, rows * width);
+                offset += rows * width;
+            }
+
+            @Override
+            public void finish() throws SlideExportException {
+                writeSlide(frame, width, height, numSlides, current);
+            }
+        };
+    }
+
+    /**
+     * Wraps a pixel buffer into an opaque RGB image, without copying the pixels.
+     * @param pixels the pixels, in ARGB format, row by row. The alpha channel is ignored.
+     * @param width the width of the image
+     * @param height the height of the image
+     * @return an image backed by the pixel buffer
+     */
+    public static BufferedImage wrap(final int[] pixels, final int width, final int height) {
+        int[] masks = {0xFF0000, 0xFF00, 0xFF};
+        WritableRaster raster = Raster.createPackedRaster(new DataBufferInt(pixels, width * height), width, height, width, masks, null);
+        return new BufferedImage(new DirectColorModel(24, masks[0], masks[1], masks[2]), raster, false, null);
+    }
+
+    /**
+     * Sets the cache used to reuse encoded frames from previous exports.
+     * @param cache the cache, or null to disable caching
+     */
+    public void setCache(final EncodedFrameCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Sets the colour reduction applied to slides by writers which support indexed images.
+     * @param colorReduction the colour reduction, or null to write RGB images
+     */
+    public void setColorReduction(final ColorReduction colorReduction) {
+        this.colorReduction = colorReduction;
+    }
+
+    /**
+     * Sets the metrics which record the time spent encoding and writing slides.
+     * @param metrics the metrics
+     */
+    public void setMetrics(final SlideMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public SlideMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Completes the export. Writers which write slides asynchronously wait for every slide to be written.
+     * @throws SlideExportException if the export cannot be completed
+     */
+    public void close() throws SlideExportException {
+        if (cache != null) {
+            cache.printStatistics();
+        }
+        if (colorReduction != null) {
+            colorReduction.printStatistics();
+        }
     }
 
     public static SlideWriter of(Profile profile, String exportFile, int width, int height, float quality) throws SlideExportException {
+        return of(profile, exportFile, width, height, quality, Collections.<String, Object>emptyMap());
+    }
+
+    public static SlideWriter of(Profile profile, String exportFile, int width, int height, float quality, Map<String, ?> options) throws SlideExportException {
+        if (CompositeSlideWriter.isComposite(exportFile)) {
+            // each output is created with this method, so it has its own cache and colour reduction
+            return CompositeSlideWriter.create(profile, exportFile, width, height, quality, options);
+        }
+        ColorReduction colorReduction = ColorReduction.fromOptions(options);
+        SlideWriter writer = create(profile, exportFile, width, height, quality, options, colorReduction);
+        writer.setCache(EncodedFrameCache.fromOptions(options));
+        writer.setColorReduction(colorReduction);
+        return writer;
+    }
+
+    /**
+     * Creates a writer for an export written to a stream, instead of a file. Only formats which produce a single
+     * file can be written to a stream: PDF, ZIP and TIFF.
+     * @param profile the profile of the deck
+     * @param out the stream, which is closed once the writer is closed
+     * @param format the export format, like <code>pdf</code> or <code>zip</code>
+     * @param width the width of the slides
+     * @param height the height of the slides
+     * @param quality the compression quality
+     * @param options the command line options
+     * @return the writer
+     * @throws SlideExportException if the format cannot be written to a stream, or the writer cannot be created
+     */
+    public static SlideWriter of(Profile profile, OutputStream out, String format, int width, int height, float quality, Map<String, ?> options) throws SlideExportException {
+        SlideWriter writer;
+        ColorReduction colorReduction = ColorReduction.fromOptions(options);
+        ExportFormat exportFormat = ExportFormat.of("." + format);
+        if (exportFormat.isPdf()) {
+            writer = PdfSlideWriter.create(profile, out, width, height, quality, options);
+        } else if (exportFormat.isZip()) {
+            writer = new ZipSlideWriter(out, zipEncoder(quality, options, colorReduction), zipExtension(options), encoderThreads(options));
+        } else if (exportFormat.isTiff()) {
+            writer = new TiffSlideWriter(out, tiffCompression(options), encoderThreads(options));
+        } else {
+            throw new SlideExportException(new IllegalArgumentException("The " + format + " format cannot be written to a stream"));
+        }
+        writer.setCache(EncodedFrameCache.fromOptions(options));
+        writer.setColorReduction(colorReduction);
+        return writer;
+    }
+
+    private static SlideWriter create(Profile profile, String exportFile, int width, int height, float quality, Map<String, ?> options, ColorReduction colorReduction) throws SlideExportException {
         ExportFormat format = ExportFormat.of(exportFile);
         if (format.isPdf()) {
-            Document document = new Document(new Rectangle(width, height), 0, 0, 0, 0);
-            try {
-                PdfWriter.getInstance(document, new FileOutputStream(exportFile));
-            } catch (DocumentException | FileNotFoundException e) {
-                throw new SlideExportException(e);
-            }
-            document.open();
-            profile.setDocument(document);
-            return new PdfSlideWriter(document);
+            // iText is only loaded when exporting to PDF
+            return PdfSlideWriter.create(profile, exportFile, width, height, quality, options);
         } else if (format.isJpeg()) {
-            return new JpegSlideWriter(exportFile, quality);
+            return new JpegSlideWriter(exportFile, quality, encoderThreads(options));
 
+        } else if (format.isPng()) {
+            return new PngSlideWriter(exportFile, pngEncoder(options, colorReduction), encoderThreads(options));
+        } else if (format.isZip()) {
+            return new ZipSlideWriter(exportFile, zipEncoder(quality, options, colorReduction), zipExtension(options), encoderThreads(options));
+        } else if (format.isTiff()) {
+            return new TiffSlideWriter(exportFile, tiffCompression(options), encoderThreads(options));
         } else {
-            return new GenericImageSlideWriter(exportFile, format.toString());
+            return new GenericImageSlideWriter(exportFile, format.toString(), encoderThreads(options));
         }
     }
+
+    private static PngEncoder pngEncoder(Map<String, ?> options, ColorReduction colorReduction) throws SlideExportException {
+        Object level = options.get("pngCompression");
+        Object filter = options.get("pngFilter");
+        Object strips = options.get("pngStrips");
+        PngEncoder encoder;
+        try {
+            encoder = new PngEncoder(
+                    level == null ? Deflater.DEFAULT_COMPRESSION : Integer.valueOf(level.toString()),
+                    filter == null ? PngEncoder.Filter.adaptive : PngEncoder.Filter.valueOf(filter.toString()),
+                    strips == null ? Runtime.getRuntime().availableProcessors() : Integer.valueOf(strips.toString()));
+        } catch (IllegalArgumentException e) {
+            throw new SlideExportException(e);
+        }
+        encoder.setColorReduction(colorReduction);
+        return encoder;
+    }
+
+    /**
+     * Returns the extension of the images stored in ZIP archives, set with the <code>zipFormat</code> option.
+     */
+    private static String zipExtension(Map<String, ?> options) throws SlideExportException {
+        Object format = options.get("zipFormat");
+        ExportFormat imageFormat = format == null ? ExportFormat.png : ExportFormat.of("." + format);
+        if (imageFormat.isPng()) {
+            return "png";
+        }
+        if (imageFormat.isJpeg()) {
+            return "jpg";
+        }
+        throw new SlideExportException(new IllegalArgumentException("ZIP archives can only contain png or jpeg images, not " + format));
+    }
+
+    private static ImageEncoder zipEncoder(float quality, Map<String, ?> options, ColorReduction colorReduction) throws SlideExportException {
+        return "jpg".equals(zipExtension(options)) ? new JpegEncoder(quality) : pngEncoder(options, colorReduction);
+    }
+
+    private static TiffSlideWriter.Compression tiffCompression(Map<String, ?> options) throws SlideExportException {
+        Object compression = options.get("tiffCompression");
+        try {
+            return compression == null ? TiffSlideWriter.Compression.deflate : TiffSlideWriter.Compression.valueOf(compression.toString());
+        } catch (IllegalArgumentException e) {
+            throw new SlideExportException(e);
+        }
+    }
+
+    private static int encoderThreads(Map<String, ?> options) {
+        Object threads = options.get("encoderThreads");
+        return threads == null ? Runtime.getRuntime().availableProcessors() : Integer.valueOf(threads.toString());
+    }
 }
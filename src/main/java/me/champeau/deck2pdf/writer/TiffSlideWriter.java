@@ -0,0 +1,257 @@
+/*
+ * Copyright 2003-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.champeau.deck2pdf.writer;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * Writes every slide as a page of a single multi-page TIFF file. Pages are 24-bit RGB images, compressed with
+ * Deflate and the horizontal predictor, or not compressed at all. Identical slides are stored once: their pages
+ * share the same image data.
+ * <p/>
+ * The file is written sequentially: the data of each page comes first, followed by its directory, which is only
+ * written once the next page is encoded, because it must point to the directory of that page.
+ */
+public class TiffSlideWriter extends ContainerSlideWriter<TiffSlideWriter.Page> {
+    public enum Compression {
+        deflate,
+        none
+    }
+
+    private static final long MAX_OFFSET = 0xFFFFFFFFL;
+    private static final int BYTES_PER_PIXEL = 3;
+    private static final int STRIP_SIZE = 64 * 1024;
+
+    private static final short SHORT = 3;
+    private static final short LONG = 4;
+    private static final short RATIONAL = 5;
+
+    private final Compression compression;
+    private final Map<String, Page> pages = new HashMap<>();
+    private Page pending;
+
+    public TiffSlideWriter(String exportFile, Compression compression, int threads) throws SlideExportException {
+        super(exportFile, threads);
+        this.compression = compression;
+    }
+
+    public TiffSlideWriter(OutputStream out, Compression compression, int threads) {
+        super(out, threads);
+        this.compression = compression;
+    }
+
+    @Override
+    protected Page encode(final BufferedImage export, final String digest) {
+        int width = export.getWidth();
+        int height = export.getHeight();
+        int rowsPerStrip = Math.max(1, STRIP_SIZE / (width * BYTES_PER_PIXEL));
+        int strips = (height + rowsPerStrip - 1) / rowsPerStrip;
+        int[] stripLengths = new int[strips];
+        int[] pixels = new int[width];
+        byte[] row = new byte[width * BYTES_PER_PIXEL];
+        byte[] strip = new byte[rowsPerStrip * row.length];
+        byte[] buffer = new byte[STRIP_SIZE];
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater();
+        try {
+            for (int s = 0; s < strips; s++) {
+                int first = s * rowsPerStrip;
+                int rows = Math.min(rowsPerStrip, height - first);
+                for (int y = 0; y < rows; y++) {
+                    export.getRGB(0, first + y, width, 1, pixels, 0, width);
+                    for (int x = 0, i = 0; x < width; x++) {
+                        int rgb = pixels[x];
+                        row[i++] = (byte) (rgb >> 16);
+                        row[i++] = (byte) (rgb >> 8);
+                        row[i++] = (byte) rgb;
+                    }
+                    if (compression == Compression.deflate) {
+                        // horizontal predictor: flat areas become runs of zeroes, which compress very well
+                        for (int i = row.length - 1; i >= BYTES_PER_PIXEL; i--) {
+                            row[i] -= row[i - BYTES_PER_PIXEL];
+                        }
+                    }
+                    System.arraycopy(row, 0, strip, y * row.length, row.length);
+                }
+                int length = rows * row.length;
+                int start = data.size();
+                if (compression == Compression.deflate) {
+                    deflater.reset();
+                    deflater.setInput(strip, 0, length);
+                    deflater.finish();
+                    while (!deflater.finished()) {
+                        data.write(buffer, 0, deflater.deflate(buffer));
+                    }
+                } else {
+                    data.write(strip, 0, length);
+                }
+                stripLengths[s] = data.size() - start;
+            }
+        } finally {
+            deflater.end();
+        }
+        return new Page(width, height, rowsPerStrip, data.toByteArray(), stripLengths);
+    }
+
+    @Override
+    protected void append(final Page encoded, final String digest, final int width, final int height, final int numSlides, final int current) throws IOException {
+        OutputStream out = getOutput();
+        Page page = encoded != null ? encoded : pages.get(digest);
+        // the directory of the previous page, if any, is followed by the data of this page and by its directory
+        long dataLength = encoded != null ? padded(encoded.data.length) : 0;
+        if (pending == null) {
+            out.write(header(8 + dataLength));
+        } else {
+            writeDirectory(pending, getPosition() + directorySize(pending) + dataLength);
+        }
+        if (encoded != null) {
+            encoded.offset = getPosition();
+            out.write(encoded.data);
+            if (encoded.data.length % 2 != 0) {
+                // directories must start on a word boundary
+                out.write(0);
+            }
+            // the data is not needed anymore, duplicates only reference it
+            encoded.data = null;
+            pages.put(digest, encoded);
+        }
+        pending = page;
+    }
+
+    @Override
+    protected void finishContainer() throws IOException {
+        if (pending == null) {
+            throw new IOException("A TIFF file requires at least one page");
+        }
+        writeDirectory(pending, 0);
+        pending = null;
+    }
+
+    private static long padded(final long length) {
+        return length + length % 2;
+    }
+
+    private static byte[] header(final long firstDirectory) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        header.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(checkOffset(firstDirectory));
+        return header.array();
+    }
+
+    private static int checkOffset(final long offset) throws IOException {
+        if (offset > MAX_OFFSET) {
+            throw new IOException("TIFF files cannot be larger than 4GB, export fewer slides or use another format");
+        }
+        return (int) offset;
+    }
+
+    private void writeDirectory(final Page page, final long next) throws IOException {
+        long position = getPosition();
+        int entries = entryCount();
+        ByteBuffer ifd = ByteBuffer.allocate(directorySize(page)).order(ByteOrder.LITTLE_ENDIAN);
+        // values which don't fit in an entry are stored right after the directory
+        long values = position + 2 + 12L * entries + 4;
+        long bitsPerSample = values;
+        long xResolution = bitsPerSample + 8;
+        long yResolution = xResolution + 8;
+        long stripOffsets = yResolution + 8;
+        long stripByteCounts = stripOffsets + 4L * page.stripLengths.length;
+        int strips = page.stripLengths.length;
+        ifd.putShort((short) entries);
+        // entries must be sorted by tag
+        entry(ifd, 254, LONG, 1, 2); // NewSubfileType: page of a multi-page file
+        entry(ifd, 256, LONG, 1, page.width); // ImageWidth
+        entry(ifd, 257, LONG, 1, page.height); // ImageLength
+        entry(ifd, 258, SHORT, BYTES_PER_PIXEL, checkOffset(bitsPerSample)); // BitsPerSample
+        entry(ifd, 259, SHORT, 1, compression == Compression.deflate ? 8 : 1); // Compression
+        entry(ifd, 262, SHORT, 1, 2); // PhotometricInterpretation: RGB
+        entry(ifd, 273, LONG, strips, strips == 1 ? checkOffset(page.offset) : checkOffset(stripOffsets)); // StripOffsets
+        entry(ifd, 277, SHORT, 1, BYTES_PER_PIXEL); // SamplesPerPixel
+        entry(ifd, 278, LONG, 1, page.rowsPerStrip); // RowsPerStrip
+        entry(ifd, 279, LONG, strips, strips == 1 ? page.stripLengths[0] : checkOffset(stripByteCounts)); // StripByteCounts
+        entry(ifd, 282, RATIONAL, 1, checkOffset(xResolution)); // XResolution
+        entry(ifd, 283, RATIONAL, 1, checkOffset(yResolution)); // YResolution
+        entry(ifd, 284, SHORT, 1, 1); // PlanarConfiguration: chunky
+        entry(ifd, 296, SHORT, 1, 2); // ResolutionUnit: inch
+        if (compression == Compression.deflate) {
+            entry(ifd, 317, SHORT, 1, 2); // Predictor: horizontal differencing
+        }
+        ifd.putInt(checkOffset(next));
+        ifd.putShort((short) 8).putShort((short) 8).putShort((short) 8).putShort((short) 0);
+        ifd.putInt(72).putInt(1);
+        ifd.putInt(72).putInt(1);
+        if (strips > 1) {
+            long offset = page.offset;
+            for (int length : page.stripLengths) {
+                ifd.putInt(checkOffset(offset));
+                offset += length;
+            }
+            for (int length : page.stripLengths) {
+                ifd.putInt(length);
+            }
+        }
+        getOutput().write(ifd.array());
+    }
+
+    private int entryCount() {
+        return compression == Compression.deflate ? 15 : 14;
+    }
+
+    /**
+     * Returns the size of the directory of a page, including the values stored after it.
+     */
+    private int directorySize(final Page page) {
+        int strips = page.stripLengths.length;
+        return 2 + 12 * entryCount() + 4 + 24 + (strips > 1 ? 8 * strips : 0);
+    }
+
+    private static void entry(final ByteBuffer ifd, final int tag, final short type, final int count, final int value) {
+        ifd.putShort((short) tag).putShort(type).putInt(count);
+        if (type == SHORT && count == 1) {
+            // values are left-justified in the entry
+            ifd.putShort((short) value).putShort((short) 0);
+        } else {
+            ifd.putInt(value);
+        }
+    }
+
+    /**
+     * An encoded page: its strips, and the offset of its data in the file, once written.
+     */
+    public static class Page {
+        private final int width;
+        private final int height;
+        private final int rowsPerStrip;
+        private byte[] data;
+        private final int[] stripLengths;
+        private long offset;
+
+        private Page(final int width, final int height, final int rowsPerStrip, final byte[] data, final int[] stripLengths) {
+            this.width = width;
+            this.height = height;
+            this.rowsPerStrip = rowsPerStrip;
+            this.data = data;
+            this.stripLengths = stripLengths;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2003-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.champeau.deck2pdf.writer;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes every slide as an image entry of a single ZIP archive. Images are already compressed, so entries are
+ * stored without compression. The archive also contains a <code>manifest.json</code> entry, which lists the slides
+ * in order with the entry of each slide: identical slides are only stored once, and share the same entry.
+ */
+public class ZipSlideWriter extends ContainerSlideWriter<byte[]> {
+    private static final String MANIFEST = "manifest.json";
+
+    private final ImageEncoder encoder;
+    private final String extension;
+    private final ZipOutputStream zip;
+    private final long time = System.currentTimeMillis();
+    private final Map<String, String> entries = new HashMap<>();
+    private final List<String> manifest = new ArrayList<>();
+
+    public ZipSlideWriter(String exportFile, ImageEncoder encoder, String extension, int threads) throws SlideExportException {
+        super(exportFile, threads);
+        this.encoder = encoder;
+        this.extension = extension;
+        this.zip = new ZipOutputStream(getOutput());
+    }
+
+    public ZipSlideWriter(OutputStream out, ImageEncoder encoder, String extension, int threads) {
+        super(out, threads);
+        this.encoder = encoder;
+        this.extension = extension;
+        this.zip = new ZipOutputStream(getOutput());
+    }
+
+    @Override
+    protected byte[] encode(final BufferedImage export, final String digest) throws IOException {
+        String key = cache == null ? null : cache.key(digest, encoder.getSettings());
+        byte[] encoded = key == null ? null : cache.get(key);
+        if (encoded == null) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            encoder.encode(export, out);
+            encoded = out.toByteArray();
+            if (key != null) {
+                cache.put(key, encoded);
+            }
+        }
+        return encoded;
+    }
+
+    @Override
+    protected void append(final byte[] encoded, final String digest, final int width, final int height, final int numSlides, final int current) throws IOException {
+        String name = entries.get(digest);
+        if (encoded != null) {
+            int digits = Math.max(3, numSlides > 0 ? ((int) Math.log10(numSlides)) + 1 : 0);
+            name = String.format("slide-%0" + digits + "d.%s", current, extension);
+            CRC32 crc = new CRC32();
+            crc.update(encoded);
+            ZipEntry entry = new ZipEntry(name);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(encoded.length);
+            entry.setCompressedSize(encoded.length);
+            entry.setCrc(crc.getValue());
+            entry.setTime(time);
+            zip.putNextEntry(entry);
+            zip.write(encoded);
+            zip.closeEntry();
+            entries.put(digest, name);
+        }
+        manifest.add(String.format(Locale.ROOT, "    {\"slide\": %d, \"entry\": \"%s\", \"width\": %d, \"height\": %d}",
+                current, name, width, height));
+    }
+
+    @Override
+    protected void finishContainer() throws IOException {
+        ZipEntry entry = new ZipEntry(MANIFEST);
+        entry.setTime(time);
+        zip.putNextEntry(entry);
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(zip, StandardCharsets.UTF_8));
+        out.println("{");
+        out.println("  \"format\": \"" + extension + "\",");
+        out.println("  \"slides\": [");
+        for (int i = 0; i < manifest.size(); i++) {
+            out.println(manifest.get(i) + (i < manifest.size() - 1 ? "," : ""));
+        }
+        out.println("  ]");
+        out.println("}");
+        out.flush();
+        zip.closeEntry();
+        zip.finish();
+    }
+
+    @Override
+    public void close() throws SlideExportException {
+        try {
+            super.close();
+        } finally {
+            encoder.dispose();
+        }
+    }
+}
@@ -8,10 +8,6 @@ setup = {
     '''
 }
 
-nextSlide = {
-    js 'Flowtime.next();'
-}
+nextSlide = 'Flowtime.next();'
 
-isLastSlide = {
-    js 'endPage == Flowtime.getPageIndex() && endSection==Flowtime.getSectionIndex()'
-}
+isLastSlide = 'endPage == Flowtime.getPageIndex() && endSection==Flowtime.getSectionIndex()'
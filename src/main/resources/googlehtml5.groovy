@@ -1,9 +1,7 @@
 // profile for html5slides (http://html5slides.googlecode.com/)
 
-isLastSlide= {
-    js 'curSlide == slideEls.length-1'
-}
+isLastSlide = 'curSlide == slideEls.length-1'
 
-nextSlide= {
-    js 'nextSlide();'
-}
+nextSlide = 'nextSlide();'
+
+gotoSlide = 'curSlide = slide - 1; updateSlides();'
@@ -9,13 +9,11 @@ setup = {
     };'''
 }
 
-nextSlide = {
-    js('api.next()')
-}
+nextSlide = 'api.next()'
 
-totalSlides = {
-    js (/$$(".step", byId('impress')).length/)
-}
+gotoSlide = 'api.goto(slide - 1)'
+
+totalSlides = '''$$(".step", byId('impress')).length'''
 
 // longer pause because of transitions
 pause = 2000
\ No newline at end of file
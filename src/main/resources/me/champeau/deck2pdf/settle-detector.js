@@ -0,0 +1,165 @@
+// Settle detector used by deck2pdf to tell when a slide is ready to be captured.
+// It keeps track of the last time the page changed, and of the time until which
+// CSS transitions or animations triggered by those changes are expected to run.
+(function () {
+    if (typeof window.deck2pdfSettled === 'function') {
+        return;
+    }
+    var now = function () {
+        return new Date().getTime();
+    };
+    var lastActivity = now();
+    var busyUntil = 0;
+    // animations and transitions which started and didn't end yet, with the time by which they should be done
+    var running = [];
+    var MAX_INSPECTED_ELEMENTS = 100;
+    // animations and transitions which don't report their end in time are no longer waited for after this delay
+    var END_GRACE_MILLIS = 500;
+
+    var parseTimes = function (value) {
+        var max = 0;
+        if (!value) {
+            return max;
+        }
+        var parts = value.split(',');
+        for (var i = 0; i < parts.length; i++) {
+            var part = parts[i].trim();
+            var time = parseFloat(part);
+            if (!isNaN(time)) {
+                time = part.indexOf('ms') > 0 ? time : time * 1000;
+                max = Math.max(max, time);
+            }
+        }
+        return max;
+    };
+
+    var expectedDuration = function (element) {
+        var style = window.getComputedStyle(element);
+        if (!style) {
+            return 0;
+        }
+        var transition = parseTimes(style.transitionDuration || style.webkitTransitionDuration) +
+            parseTimes(style.transitionDelay || style.webkitTransitionDelay);
+        var animation = parseTimes(style.animationDuration || style.webkitAnimationDuration) +
+            parseTimes(style.animationDelay || style.webkitAnimationDelay);
+        return Math.max(transition, animation);
+    };
+
+    var inspect = function (element) {
+        if (!element || element.nodeType !== 1) {
+            return;
+        }
+        var duration = expectedDuration(element);
+        var descendants = element.getElementsByTagName('*');
+        var count = Math.min(descendants.length, MAX_INSPECTED_ELEMENTS);
+        for (var i = 0; i < count; i++) {
+            duration = Math.max(duration, expectedDuration(descendants[i]));
+        }
+        if (duration > 0) {
+            busyUntil = Math.max(busyUntil, now() + duration);
+        }
+    };
+
+    var touch = function () {
+        lastActivity = now();
+    };
+
+    var Observer = window.MutationObserver || window.WebKitMutationObserver;
+    if (Observer) {
+        new Observer(function (mutations) {
+            touch();
+            for (var i = 0; i < mutations.length; i++) {
+                if (mutations[i].type === 'attributes') {
+                    inspect(mutations[i].target);
+                }
+            }
+        }).observe(document, {attributes: true, childList: true, characterData: true, subtree: true});
+    }
+
+    var nameOf = function (event) {
+        return event.animationName || event.propertyName || '';
+    };
+    var started = function (event) {
+        touch();
+        var target = event.target;
+        if (!target || target.nodeType !== 1) {
+            return;
+        }
+        var duration = expectedDuration(target);
+        if (event.animationName) {
+            var style = window.getComputedStyle(target);
+            var iterations = style ? (style.animationIterationCount || style.webkitAnimationIterationCount || '1') : '1';
+            if (iterations.indexOf('infinite') >= 0) {
+                // an infinite animation never settles, so it is not waited for
+                return;
+            }
+            duration = duration * Math.max(1, parseFloat(iterations) || 1);
+        }
+        running.push({target: target, name: nameOf(event), until: now() + duration + END_GRACE_MILLIS});
+    };
+    var ended = function (event) {
+        touch();
+        for (var i = 0; i < running.length; i++) {
+            if (running[i].target === event.target && running[i].name === nameOf(event)) {
+                running.splice(i, 1);
+                return;
+            }
+        }
+    };
+    // elements removed or hidden while animating never receive an end event, and some animations
+    // don't end when expected, so such animations are forgotten instead of blocking the next slides
+    var stillRunning = function () {
+        var time = now();
+        var root = document.documentElement;
+        running = running.filter(function (animation) {
+            return time < animation.until && root.contains(animation.target) && animation.target.getClientRects().length > 0;
+        });
+        return running.length > 0;
+    };
+    var listen = function (events, handler) {
+        for (var i = 0; i < events.length; i++) {
+            document.addEventListener(events[i], handler, true);
+        }
+    };
+    listen(['animationstart', 'webkitAnimationStart', 'transitionrun'], started);
+    listen(['animationend', 'webkitAnimationEnd', 'transitionend', 'webkitTransitionEnd', 'transitioncancel'], ended);
+    listen(['load', 'error'], touch);
+
+    var imagesLoaded = function () {
+        var images = document.images;
+        for (var i = 0; i < images.length; i++) {
+            if (!images[i].complete) {
+                return false;
+            }
+        }
+        return true;
+    };
+
+    // when the engine supports the Web Animations API, it tells which animations are running, otherwise
+    // the animations are tracked from their start and end events
+    var animationsRunning = function () {
+        if (typeof document.getAnimations !== 'function') {
+            return stillRunning();
+        }
+        var animations = document.getAnimations();
+        for (var i = 0; i < animations.length; i++) {
+            var effect = animations[i].effect;
+            var timing = effect && typeof effect.getTiming === 'function' ? effect.getTiming() : null;
+            if (animations[i].playState === 'running' && !(timing && timing.iterations === Infinity)) {
+                return true;
+            }
+        }
+        return false;
+    };
+
+    window.deck2pdfSettled = function (quietPeriod) {
+        var time = now();
+        if (time - lastActivity < quietPeriod || time < busyUntil) {
+            return false;
+        }
+        if (document.fonts && document.fonts.status === 'loading') {
+            return false;
+        }
+        return imagesLoaded() && !animationsRunning();
+    };
+})();
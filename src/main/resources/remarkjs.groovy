@@ -1,7 +1,5 @@
-isLastSlide = {
-    js 'window.slideshow.getCurrentSlideIndex() >= window.slideshow.getSlideCount() - 1;'
-}
+isLastSlide = 'window.slideshow.getCurrentSlideIndex() >= window.slideshow.getSlideCount() - 1;'
 
-nextSlide = {
-    js 'window.slideshow.gotoNextSlide();'
-}
+nextSlide = 'window.slideshow.gotoNextSlide();'
+
+gotoSlide = 'window.slideshow.gotoSlide(slide);'
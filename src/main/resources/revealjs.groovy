@@ -1,10 +1,6 @@
-isLastSlide = {
-    js 'Reveal.isLastSlide();'
-}
+isLastSlide = 'Reveal.isLastSlide();'
 
-nextSlide = {
-    js 'Reveal.next();'
-}
+nextSlide = 'Reveal.next();'
 
 setup = {
     // disable controls for better rendering
@@ -13,4 +9,21 @@ setup = {
     if (Boolean.valueOf(options.skipFragments)) {
         js 'Reveal.configure({fragments: false});'
     }
-}
\ No newline at end of file
+}
+
+if (Boolean.valueOf(options.skipFragments)) {
+    // without fragments, each exported slide is a horizontal or vertical slide, in navigation order
+    gotoSlide = '''
+        var index = 0;
+        var horizontal = document.querySelectorAll('.reveal .slides > section');
+        for (var h = 0; h < horizontal.length; h++) {
+            var vertical = horizontal[h].querySelectorAll('section');
+            var count = Math.max(1, vertical.length);
+            if (index + count >= slide) {
+                Reveal.slide(h, vertical.length ? slide - index - 1 : 0);
+                break;
+            }
+            index += count;
+        }
+    '''
+}
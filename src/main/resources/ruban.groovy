@@ -2,27 +2,18 @@ setup = {
     js 'ruban.disableTransitions();'
 }
 
-isLastSlide = {
-    if (Boolean.valueOf(options.skipSteps)) {
-        js 'ruban.isLastSlide()'
-    }
-    else {
-        js 'ruban.isLastSlide() && ruban.isLastStep()'
-    }
-}
-
-nextSlide = {
-    if (Boolean.valueOf(options.skipSteps)) {
-        js '''
-            ruban.nextSlide();
-            if (ruban.hasSteps()) {
-                while (!ruban.isLastStep()) {
-                    ruban.next();
-                }
+if (Boolean.valueOf(options.skipSteps)) {
+    isLastSlide = 'ruban.isLastSlide()'
+    nextSlide = '''
+        ruban.nextSlide();
+        if (ruban.hasSteps()) {
+            while (!ruban.isLastStep()) {
+                ruban.next();
             }
-        '''
-    }
-    else {
-        js 'ruban.next();'
-    }
+        }
+    '''
+}
+else {
+    isLastSlide = 'ruban.isLastSlide() && ruban.isLastStep()'
+    nextSlide = 'ruban.next();'
 }
\ No newline at end of file
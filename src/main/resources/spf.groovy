@@ -26,10 +26,6 @@ setup = {
     '''
 }
 
-totalSlides = {
-    js 'slideCount'
-}
+totalSlides = 'slideCount'
 
-nextSlide = {
-    js 'slideView.next()'
-}
\ No newline at end of file
+nextSlide = 'slideView.next()'
\ No newline at end of file